@@ -113,7 +113,9 @@ public abstract class AbstractRefactoringHelper {
             String newEntityName,
             String oldEntityRepresentation,
             String newEntityRepresentation) {
-        return similarity(oldEntityName, newEntityName, oldEntityRepresentation, newEntityRepresentation) >= getThreshold();
+        double threshold = getThreshold();
+        return similarity(oldEntityName, newEntityName, oldEntityRepresentation, newEntityRepresentation, threshold)
+                >= threshold;
     }
 
     /**
@@ -147,6 +149,72 @@ public abstract class AbstractRefactoringHelper {
             String oldEntityRepresentation,
             String newEntityRepresentation);
 
+    /**
+     * Calculates the similarity between two entities like {@link #similarity(String, String, String, String)}, but
+     * only as exactly as needed to compare it with the threshold. Subclasses with measures that can stop early once
+     * the threshold cannot be reached anymore override this method.
+     * 
+     * @param oldEntityName
+     *            of the old entity
+     * @param newEntityName
+     *            of the new entity
+     * @param oldEntityRepresentation
+     *            of the old entity
+     * @param newEntityRepresentation
+     *            of the new entity
+     * @param threshold
+     *            with which the similarity is compared
+     * @return similarity value of the two entities if it is at least the threshold, a value below the threshold
+     *         otherwise
+     */
+    protected double similarity(
+            String oldEntityName,
+            String newEntityName,
+            String oldEntityRepresentation,
+            String newEntityRepresentation,
+            double threshold) {
+        return similarity(oldEntityName, newEntityName, oldEntityRepresentation, newEntityRepresentation);
+    }
+
+    /**
+     * Calculates the similarities between one new entity and several old ones at once, each like
+     * {@link #similarity(String, String, String, String, double)}. Subclasses with measures that can set up the new
+     * entity once for all old ones override this method.
+     * 
+     * @param oldEntityNames
+     *            of the old entities
+     * @param oldEntityRepresentations
+     *            of the old entities
+     * @param count
+     *            of old entities, from the start of the arrays
+     * @param newEntityName
+     *            of the new entity
+     * @param newEntityRepresentation
+     *            of the new entity
+     * @param threshold
+     *            with which the similarities are compared
+     * @param similarities
+     *            filled with the similarity of the new entity and each old entity at its index
+     */
+    protected void similarities(
+            String[] oldEntityNames,
+            String[] oldEntityRepresentations,
+            int count,
+            String newEntityName,
+            String newEntityRepresentation,
+            double threshold,
+            double[] similarities) {
+        for (int i = 0; i < count; i++) {
+            similarities[i] =
+                    similarity(
+                            oldEntityNames[i],
+                            newEntityName,
+                            oldEntityRepresentations[i],
+                            newEntityRepresentation,
+                            threshold);
+        }
+    }
+
     /**
      * Returns the {@link ClassHistory} in which the refactorings took place.
      * 
@@ -18,9 +18,7 @@ package org.evolizer.changedistiller.distilling;
 import org.evolizer.changedistiller.model.classifiers.EntityType;
 import org.evolizer.changedistiller.model.entities.ClassHistory;
 import org.evolizer.changedistiller.model.entities.StructureEntityVersion;
-
-import simpack.accessor.string.StringAccessor;
-import simpack.measure.sequence.Levenshtein;
+import org.evolizer.changedistiller.treedifferencing.matching.measure.LevenshteinCalculator;
 
 /**
  * Helps finding refactorings of classes.
@@ -86,8 +84,40 @@ public class ClassRefactoringHelper extends AbstractRefactoringHelper {
             String newEntityName,
             String oldEntityRepresentation,
             String newEntityRepresentation) {
-        Levenshtein<String> lm =
-                new Levenshtein<String>(new StringAccessor(oldEntityName), new StringAccessor(newEntityName));
-        return lm.getSimilarity();
+        return similarity(oldEntityName, newEntityName, oldEntityRepresentation, newEntityRepresentation, 0.0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected double similarity(
+            String oldEntityName,
+            String newEntityName,
+            String oldEntityRepresentation,
+            String newEntityRepresentation,
+            double threshold) {
+        LevenshteinCalculator lm = new LevenshteinCalculator();
+        return lm.calculateSimilarity(oldEntityName, newEntityName, threshold);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void similarities(
+            String[] oldEntityNames,
+            String[] oldEntityRepresentations,
+            int count,
+            String newEntityName,
+            String newEntityRepresentation,
+            double threshold,
+            double[] similarities) {
+        LevenshteinCalculator lm = new LevenshteinCalculator();
+        Object[] profiles = new Object[count];
+        for (int i = 0; i < count; i++) {
+            profiles[i] = lm.prepareProfile(oldEntityNames[i]);
+        }
+        lm.calculateProfileSimilarities(lm.prepareProfile(newEntityName), profiles, count, threshold, similarities);
     }
 }
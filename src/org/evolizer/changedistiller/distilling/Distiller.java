@@ -32,6 +32,7 @@ import org.evolizer.changedistiller.jdt.AbstractASTHelper;
 import org.evolizer.changedistiller.jdt.JavaASTHelper;
 import org.evolizer.changedistiller.model.classifiers.ChangeType;
 import org.evolizer.changedistiller.model.classifiers.EntityType;
+import org.evolizer.changedistiller.model.classifiers.SourceRange;
 import org.evolizer.changedistiller.model.entities.ClassHistory;
 import org.evolizer.changedistiller.model.entities.Delete;
 import org.evolizer.changedistiller.model.entities.Insert;
@@ -41,6 +42,7 @@ import org.evolizer.changedistiller.model.entities.SourceCodeEntity;
 import org.evolizer.changedistiller.model.entities.StructureEntityVersion;
 import org.evolizer.changedistiller.model.entities.Update;
 import org.evolizer.changedistiller.treedifferencing.ITreeEditOperation;
+import org.evolizer.changedistiller.treedifferencing.ITreeEditOperationHandler;
 import org.evolizer.changedistiller.treedifferencing.Node;
 import org.evolizer.changedistiller.treedifferencing.TreeDifferencer;
 import org.evolizer.changedistiller.treedifferencing.operation.DeleteOperation;
@@ -67,11 +69,12 @@ public class Distiller {
     private AbstractASTHelper fLeftASTHelper;
     private AbstractASTHelper fRightASTHelper;
 
-    private TreeDifferencer fASTDifferencer;
+    private TreeDifferencer fASTDifferencer = new TreeDifferencer();
     private List<SourceCodeChange> fChanges;
 
     private ClassHistory fClassHistory;
     private boolean fIsRootClass = true;
+    private int fNumberOfSkippedMembers;
 
     /**
      * Returns the generated or updated {@link ClassHistory} for the files to extract the {@link SourceCodeChange}s
@@ -83,6 +86,16 @@ public class Distiller {
         return fClassHistory;
     }
 
+    /**
+     * Returns the number of changed members of the last distilling pass whose body and declaration differed only in
+     * whitespace or formatting. Distiller neither created nor differenced trees for these members.
+     * 
+     * @return the number of members skipped by the last distilling pass
+     */
+    public int getNumberOfSkippedMembers() {
+        return fNumberOfSkippedMembers;
+    }
+
     /**
      * Returns all classified {@link SourceCodeChange} that were extracted by distiller from the two files.
      * 
@@ -106,8 +119,8 @@ public class Distiller {
             fLeftASTHelper = new JavaASTHelper(leftFile);
             fRightASTHelper = new JavaASTHelper(rightFile);
 
-            fASTDifferencer = new TreeDifferencer();
             fChanges = new LinkedList<SourceCodeChange>();
+            fNumberOfSkippedMembers = 0;
 
             // find class node in difference tree
             DiffNode classNode = StructureDiffUtils.findClass(diff.getChildren());
@@ -186,8 +199,11 @@ public class Distiller {
                     sev = fClassHistory.createAttribute(entityName, modifiers);
                 }
 
-                extractBodyChanges(diffNode, sev, newChanges);
-                extractDeclarationChanges(diffNode, sev, newChanges);
+                boolean bodyDifferenced = extractBodyChanges(diffNode, sev, newChanges);
+                boolean declarationDifferenced = extractDeclarationChanges(diffNode, sev, newChanges);
+                if (!bodyDifferenced && !declarationDifferenced) {
+                    fNumberOfSkippedMembers++;
+                }
 
                 // only save bcos or dcos if they are not empty
                 if (newChanges.isEmpty()) {
@@ -252,34 +268,58 @@ public class Distiller {
         return null;
     }
 
-    private void extractBodyChanges(
+    /**
+     * Extracts the changes between the bodies of the given {@link DiffNode}. Bodies with equal token streams are not
+     * differenced.
+     * 
+     * @return <code>true</code> if the body trees were created and differenced, <code>false</code> otherwise
+     */
+    private boolean extractBodyChanges(
             DiffNode diffNode,
             StructureEntityVersion structureEntity,
             List<SourceCodeChange> changes) {
         if (StructureDiffUtils.isMethodOrConstructor(diffNode)) {
-            Node leftRoot =
-                    fLeftASTHelper.createBodyTree(structureEntity.getUniqueName(), StructureDiffUtils
-                            .convert((DocumentRangeNode) diffNode.getLeft()));
-            Node rightRoot =
-                    fRightASTHelper.createBodyTree(structureEntity.getUniqueName(), StructureDiffUtils
-                            .convert((DocumentRangeNode) diffNode.getRight()));
+            SourceRange leftRange = StructureDiffUtils.convert((DocumentRangeNode) diffNode.getLeft());
+            SourceRange rightRange = StructureDiffUtils.convert((DocumentRangeNode) diffNode.getRight());
+            if (areEqual(fLeftASTHelper.createBodyTokens(leftRange), fRightASTHelper.createBodyTokens(rightRange))) {
+                return false;
+            }
+            Node leftRoot = fLeftASTHelper.createBodyTree(structureEntity.getUniqueName(), leftRange);
+            Node rightRoot = fRightASTHelper.createBodyTree(structureEntity.getUniqueName(), rightRange);
             extractFineGrainedChanges(structureEntity, changes, leftRoot, rightRoot);
+            return true;
         }
+        return false;
     }
 
-    private void extractDeclarationChanges(
+    /**
+     * Extracts the changes between the declarations of the given {@link DiffNode}. Declarations with equal token
+     * streams are not differenced.
+     * 
+     * @return <code>true</code> if the declaration trees were created and differenced, <code>false</code> otherwise
+     */
+    private boolean extractDeclarationChanges(
             DiffNode diffNode,
             StructureEntityVersion structureEntity,
             List<SourceCodeChange> changes) {
         if (StructureDiffUtils.isDeclaration(diffNode)) {
-            Node leftRoot =
-                    fLeftASTHelper.createDeclarationTree(structureEntity.getUniqueName(), StructureDiffUtils
-                            .convert((DocumentRangeNode) diffNode.getLeft()));
-            Node rightRoot =
-                    fRightASTHelper.createDeclarationTree(structureEntity.getUniqueName(), StructureDiffUtils
-                            .convert((DocumentRangeNode) diffNode.getRight()));
+            SourceRange leftRange = StructureDiffUtils.convert((DocumentRangeNode) diffNode.getLeft());
+            SourceRange rightRange = StructureDiffUtils.convert((DocumentRangeNode) diffNode.getRight());
+            if (areEqual(
+                    fLeftASTHelper.createDeclarationTokens(leftRange),
+                    fRightASTHelper.createDeclarationTokens(rightRange))) {
+                return false;
+            }
+            Node leftRoot = fLeftASTHelper.createDeclarationTree(structureEntity.getUniqueName(), leftRange);
+            Node rightRoot = fRightASTHelper.createDeclarationTree(structureEntity.getUniqueName(), rightRange);
             extractFineGrainedChanges(structureEntity, changes, leftRoot, rightRoot);
+            return true;
         }
+        return false;
+    }
+
+    private boolean areEqual(List<String> leftTokens, List<String> rightTokens) {
+        return (leftTokens != null) && leftTokens.equals(rightTokens);
     }
 
     private void extractFineGrainedChanges(
@@ -288,35 +328,29 @@ public class Distiller {
             Node leftRoot,
             Node rightRoot) {
         if ((leftRoot != null) && (rightRoot != null)) {
-            fASTDifferencer.calculateEditScript(leftRoot, rightRoot);
-            List<ITreeEditOperation> ops = fASTDifferencer.getEditScript();
-            extractSourceCodeChanges(structureEntity, changes, ops);
+            fASTDifferencer.calculateEditScript(
+                    leftRoot,
+                    rightRoot,
+                    new SourceCodeChangeExtractor(structureEntity, changes));
         }
     }
 
-    private void extractSourceCodeChanges(
-            StructureEntityVersion structureEntity,
-            List<SourceCodeChange> changes,
-            List<ITreeEditOperation> ops) {
-        for (ITreeEditOperation op : ops) {
-            SourceCodeChange co = null;
-            if (op.getOperationType() == ITreeEditOperation.INSERT) {
-                InsertOperation ins = (InsertOperation) op;
-                co = createInsertOperation(structureEntity, ins);
-            } else if (op.getOperationType() == ITreeEditOperation.DELETE) {
-                DeleteOperation del = (DeleteOperation) op;
-                co = createDeleteOperation(structureEntity, del);
-            } else if (op.getOperationType() == ITreeEditOperation.MOVE) {
-                MoveOperation mov = (MoveOperation) op;
-                co = createMoveOperation(structureEntity, mov);
-            } else if (op.getOperationType() == ITreeEditOperation.UPDATE) {
-                UpdateOperation upd = (UpdateOperation) op;
-                co = createUpdateOperation(structureEntity, upd);
-            }
-            if (co != null) {
-                changes.add(co);
-            }
+    private SourceCodeChange createSourceCodeChange(StructureEntityVersion structureEntity, ITreeEditOperation op) {
+        SourceCodeChange co = null;
+        if (op.getOperationType() == ITreeEditOperation.INSERT) {
+            InsertOperation ins = (InsertOperation) op;
+            co = createInsertOperation(structureEntity, ins);
+        } else if (op.getOperationType() == ITreeEditOperation.DELETE) {
+            DeleteOperation del = (DeleteOperation) op;
+            co = createDeleteOperation(structureEntity, del);
+        } else if (op.getOperationType() == ITreeEditOperation.MOVE) {
+            MoveOperation mov = (MoveOperation) op;
+            co = createMoveOperation(structureEntity, mov);
+        } else if (op.getOperationType() == ITreeEditOperation.UPDATE) {
+            UpdateOperation upd = (UpdateOperation) op;
+            co = createUpdateOperation(structureEntity, upd);
         }
+        return co;
     }
 
     private void processClassContainer(DiffNode classNode, String entityName) {
@@ -478,6 +512,32 @@ public class Distiller {
         }
     }
 
+    /**
+     * Converts the edit operations of a {@link TreeDifferencer} run into {@link SourceCodeChange}s while they are
+     * generated.
+     */
+    private final class SourceCodeChangeExtractor implements ITreeEditOperationHandler {
+
+        private StructureEntityVersion fStructureEntity;
+        private List<SourceCodeChange> fSourceCodeChanges;
+
+        private SourceCodeChangeExtractor(StructureEntityVersion structureEntity, List<SourceCodeChange> changes) {
+            fStructureEntity = structureEntity;
+            fSourceCodeChanges = changes;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public boolean handle(ITreeEditOperation operation) {
+            SourceCodeChange co = createSourceCodeChange(fStructureEntity, operation);
+            if (co != null) {
+                fSourceCodeChanges.add(co);
+            }
+            return true;
+        }
+    }
+
     private final class RefactoringContainer {
 
         private List<RefactoringCandidate> fAddedAttributes = new LinkedList<RefactoringCandidate>();
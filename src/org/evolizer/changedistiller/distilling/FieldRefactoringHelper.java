@@ -18,9 +18,7 @@ package org.evolizer.changedistiller.distilling;
 import org.evolizer.changedistiller.model.classifiers.EntityType;
 import org.evolizer.changedistiller.model.entities.ClassHistory;
 import org.evolizer.changedistiller.model.entities.StructureEntityVersion;
-
-import simpack.accessor.string.StringAccessor;
-import simpack.measure.sequence.Levenshtein;
+import org.evolizer.changedistiller.treedifferencing.matching.measure.LevenshteinCalculator;
 
 /**
  * Helps finding refactorings of fields.
@@ -90,13 +88,66 @@ public class FieldRefactoringHelper extends AbstractRefactoringHelper {
             String newEntityName,
             String oldEntityRepresentation,
             String newEntityRepresentation) {
+        return similarity(oldEntityName, newEntityName, oldEntityRepresentation, newEntityRepresentation, 0.0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected double similarity(
+            String oldEntityName,
+            String newEntityName,
+            String oldEntityRepresentation,
+            String newEntityRepresentation,
+            double threshold) {
         if (!oldEntityName.equals(newEntityName)) {
-            Levenshtein<String> lm =
-                    new Levenshtein<String>(new StringAccessor(oldEntityRepresentation), new StringAccessor(
-                            newEntityRepresentation));
-            return lm.getSimilarity();
+            if (isEmpty(oldEntityRepresentation, newEntityRepresentation)) {
+                return 0.0;
+            }
+            LevenshteinCalculator lm = new LevenshteinCalculator();
+            return lm.calculateSimilarity(oldEntityRepresentation, newEntityRepresentation, threshold);
         } else {
             return 1.0;
         }
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void similarities(
+            String[] oldEntityNames,
+            String[] oldEntityRepresentations,
+            int count,
+            String newEntityName,
+            String newEntityRepresentation,
+            double threshold,
+            double[] similarities) {
+        LevenshteinCalculator lm = new LevenshteinCalculator();
+        Object[] profiles = new Object[count];
+        for (int i = 0; i < count; i++) {
+            profiles[i] = lm.prepareProfile(oldEntityRepresentations[i]);
+        }
+        lm.calculateProfileSimilarities(
+                lm.prepareProfile(newEntityRepresentation),
+                profiles,
+                count,
+                threshold,
+                similarities);
+        for (int i = 0; i < count; i++) {
+            if (oldEntityNames[i].equals(newEntityName)) {
+                similarities[i] = 1.0;
+            } else if (isEmpty(oldEntityRepresentations[i], newEntityRepresentation)) {
+                similarities[i] = 0.0;
+            }
+        }
+    }
+
+    /**
+     * Two fields without representations are not similar, regardless of the similarity of empty strings.
+     */
+    private static boolean isEmpty(String oldEntityRepresentation, String newEntityRepresentation) {
+        return (oldEntityRepresentation.length() == 0) && (newEntityRepresentation.length() == 0);
+    }
 }
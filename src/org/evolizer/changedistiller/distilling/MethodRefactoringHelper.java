@@ -92,4 +92,24 @@ public class MethodRefactoringHelper extends AbstractRefactoringHelper {
         return lm.calculateSimilarity(oldEntityName, newEntityName);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void similarities(
+            String[] oldEntityNames,
+            String[] oldEntityRepresentations,
+            int count,
+            String newEntityName,
+            String newEntityRepresentation,
+            double threshold,
+            double[] similarities) {
+        NGramsCalculator lm = new NGramsCalculator(2);
+        Object[] profiles = new Object[count];
+        for (int i = 0; i < count; i++) {
+            profiles[i] = lm.prepareProfile(oldEntityNames[i]);
+        }
+        lm.calculateProfileSimilarities(lm.prepareProfile(newEntityName), profiles, count, threshold, similarities);
+    }
+
 }
@@ -54,30 +54,58 @@ public final class RefactoringExtractor {
             AbstractRefactoringHelper refactoringHelper) {
         List<RefactoringPair> refactorings = new ArrayList<RefactoringPair>();
         List<RefactoringPair> refactoringCandidates = new ArrayList<RefactoringPair>();
+
+        // the deleted entities are compared with each added one, so their strings are taken only once
+        RefactoringCandidate[] leftCandidates =
+                deletedEntities.toArray(new RefactoringCandidate[deletedEntities.size()]);
+        String[] leftNames = new String[leftCandidates.length];
+        String[] leftDocStrings = new String[leftCandidates.length];
+        int[] leftTypeCodes = new int[leftCandidates.length];
+        for (int i = 0; i < leftCandidates.length; i++) {
+            DiffNode leftDiffNode = leftCandidates[i].getDiffNode();
+            DocumentRangeNode leftDrn = (DocumentRangeNode) leftDiffNode.getLeft();
+            leftNames[i] = leftDiffNode.getName();
+            leftDocStrings[i] = getDocString(leftDrn);
+            leftTypeCodes[i] = leftDrn.getTypeCode();
+        }
+
+        int[] indexes = new int[leftCandidates.length];
+        String[] names = new String[leftCandidates.length];
+        String[] docStrings = new String[leftCandidates.length];
+        double[] similarities = new double[leftCandidates.length];
+        double threshold = refactoringHelper.getThreshold();
         for (RefactoringCandidate rightCandidate : addedEntities) {
             DiffNode rightDiffNode = rightCandidate.getDiffNode();
             String rightName = rightDiffNode.getName();
             DocumentRangeNode rightDrn = (DocumentRangeNode) rightDiffNode.getRight();
 
-            for (RefactoringCandidate leftCandidate : deletedEntities) {
-                DiffNode leftDiffNode = leftCandidate.getDiffNode();
-                String leftName = leftDiffNode.getName();
-                DocumentRangeNode leftDrn = (DocumentRangeNode) leftDiffNode.getLeft();
+            int count = 0;
+            for (int i = 0; i < leftCandidates.length; i++) {
                 // fix for Bug 68
-                if (rightDrn.getTypeCode() == leftDrn.getTypeCode()) {
-                    if (refactoringHelper.isRefactoring(
-                            leftName,
-                            rightName,
-                            getDocString(leftDrn),
-                            getDocString(rightDrn))) {
-                        double similarity =
-                                refactoringHelper.similarity(
-                                        leftName,
-                                        rightName,
-                                        getDocString(leftDrn),
-                                        getDocString(rightDrn));
-                        refactoringCandidates.add(new RefactoringPair(leftCandidate, rightCandidate, similarity));
-                    }
+                if (rightDrn.getTypeCode() == leftTypeCodes[i]) {
+                    indexes[count] = i;
+                    names[count] = leftNames[i];
+                    docStrings[count] = leftDocStrings[i];
+                    count++;
+                }
+            }
+            if (count == 0) {
+                continue;
+            }
+            refactoringHelper.similarities(
+                    names,
+                    docStrings,
+                    count,
+                    rightName,
+                    getDocString(rightDrn),
+                    threshold,
+                    similarities);
+            for (int i = 0; i < count; i++) {
+                if (similarities[i] >= threshold) {
+                    refactoringCandidates.add(new RefactoringPair(
+                            leftCandidates[indexes[i]],
+                            rightCandidate,
+                            similarities[i]));
                 }
             }
         }
@@ -15,6 +15,8 @@
  */
 package org.evolizer.changedistiller.jdt;
 
+import java.util.List;
+
 import org.eclipse.core.resources.IFile;
 import org.evolizer.changedistiller.distilling.Distiller;
 import org.evolizer.changedistiller.model.classifiers.EntityType;
@@ -61,6 +63,19 @@ public abstract class AbstractASTHelper {
      */
     public abstract SourceCodeEntity createBodyRootSourceCodeEntity(String name, SourceRange range);
 
+    /**
+     * Returns the normalized token stream of the body of the {@link SourceCodeEntity} declared by the range in the
+     * {@link IFile}. Whitespace and formatting are not part of the stream, and the whitespace in comments is collapsed.
+     * The body trees of two bodies with equal token streams may still differ in the comment text and the source ranges
+     * of their nodes, but the tree differencer reports no changes between them, as it compares comments regardless of
+     * whitespace.
+     * 
+     * @param range
+     *            inside the file
+     * @return token stream of the body inside the range in the file, or <code>null</code> if it could not be created
+     */
+    public abstract List<String> createBodyTokens(SourceRange range);
+
     /**
      * Create a generic {@link Node} tree out of the body of the {@link SourceCodeEntity} declared by the range in the
      * {@link IFile} and give it a name.
@@ -84,6 +99,20 @@ public abstract class AbstractASTHelper {
      */
     public abstract SourceCodeEntity createDeclarationRootSourceCodeEntity(String name, SourceRange range);
 
+    /**
+     * Returns the normalized token stream of the declaration of the {@link SourceCodeEntity} declared by the range in
+     * the {@link IFile}. Whitespace and formatting are not part of the stream, and the whitespace in comments is
+     * collapsed. The declaration trees of two declarations with equal token streams may still differ in the comment
+     * text and the source ranges of their nodes, but the tree differencer reports no changes between them, as it
+     * compares comments regardless of whitespace.
+     * 
+     * @param range
+     *            inside the file
+     * @return token stream of the declaration inside the range in the file, or <code>null</code> if it could not be
+     *         created
+     */
+    public abstract List<String> createDeclarationTokens(SourceRange range);
+
     /**
      * Create a generic {@link Node} tree out of the declaration of the {@link SourceCodeEntity} declared by the range
      * in the {@link IFile} and give it a name.
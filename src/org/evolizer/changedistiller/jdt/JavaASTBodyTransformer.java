@@ -51,6 +51,7 @@ import org.eclipse.jface.text.Document;
 import org.evolizer.changedistiller.model.classifiers.EntityType;
 import org.evolizer.changedistiller.model.classifiers.SourceRange;
 import org.evolizer.changedistiller.model.entities.SourceCodeEntity;
+import org.evolizer.changedistiller.treedifferencing.FlatTree;
 import org.evolizer.changedistiller.treedifferencing.Node;
 
 /**
@@ -72,6 +73,7 @@ public class JavaASTBodyTransformer extends ASTVisitor {
     private Stack<ASTNode[]> fLastCommentTuples = new Stack<ASTNode[]>();
     private Stack<Node[]> fLastCommentNodeTuples = new Stack<Node[]>();
     private AbstractASTHelper fASTHelper;
+    private FlatTree.Builder fFlatTreeBuilder = new FlatTree.Builder();
 
     /**
      * Creates a new structure transformer.
@@ -97,6 +99,7 @@ public class JavaASTBodyTransformer extends ASTVisitor {
         fLastVisitedNode = astRoot;
         fLastAddedNode = root;
         fNodeStack.push(root);
+        fFlatTreeBuilder.add(root, null);
         fComments = comments;
         fSource = source;
         fASTHelper = astHelper;
@@ -735,6 +738,16 @@ public class JavaASTBodyTransformer extends ASTVisitor {
         pop(node);
     }
 
+    /**
+     * Returns the flattened representation of the generated tree. The flat tree is attached to the nodes of the
+     * generated tree, so that {@link FlatTree#of(Node)} finds it without another traversal.
+     * 
+     * @return the flat tree of the generated tree
+     */
+    public FlatTree createFlatTree() {
+        return fFlatTreeBuilder.build();
+    }
+
     private void visitList(List<ASTNode> list) {
         for (ASTNode element : list) {
             element.accept(this);
@@ -764,7 +777,9 @@ public class JavaASTBodyTransformer extends ASTVisitor {
                         label,
                         value.trim(),
                         new SourceCodeEntity(value.trim(), label, new SourceRange(offset, length)));
-        getCurrentParent().add(n);
+        Node parent = getCurrentParent();
+        parent.add(n);
+        fFlatTreeBuilder.add(n, parent);
         fNodeStack.push(n);
     }
 
@@ -43,6 +43,7 @@ import org.eclipse.jface.text.Document;
 import org.evolizer.changedistiller.model.classifiers.EntityType;
 import org.evolizer.changedistiller.model.classifiers.SourceRange;
 import org.evolizer.changedistiller.model.entities.SourceCodeEntity;
+import org.evolizer.changedistiller.treedifferencing.FlatTree;
 import org.evolizer.changedistiller.treedifferencing.Node;
 
 /**
@@ -60,6 +61,7 @@ public class JavaASTDeclarationTransformer extends ASTVisitor {
     private boolean fInMethodDeclaration;
     private Document fSource;
     private AbstractASTHelper fASTHelper;
+    private FlatTree.Builder fFlatTreeBuilder = new FlatTree.Builder();
 
     /**
      * Creates a new declaration transformer.
@@ -75,6 +77,7 @@ public class JavaASTDeclarationTransformer extends ASTVisitor {
         fSource = source;
         fNodeStack.clear();
         fNodeStack.push(root);
+        fFlatTreeBuilder.add(root, null);
         fASTHelper = astHelper;
     }
 
@@ -469,6 +472,16 @@ public class JavaASTDeclarationTransformer extends ASTVisitor {
         pop();
     }
 
+    /**
+     * Returns the flattened representation of the generated tree. The flat tree is attached to the nodes of the
+     * generated tree, so that {@link FlatTree#of(Node)} finds it without another traversal.
+     * 
+     * @return the flat tree of the generated tree
+     */
+    public FlatTree createFlatTree() {
+        return fFlatTreeBuilder.build();
+    }
+
     private void visitList(List<ASTNode> list) {
         for (ASTNode node : list) {
             (node).accept(this);
@@ -496,7 +509,9 @@ public class JavaASTDeclarationTransformer extends ASTVisitor {
         SourceCodeEntity st = null;
         st = new SourceCodeEntity(value.trim(), label, new SourceRange(startPosition, length));
         Node n = new Node(label, value.trim(), st);
-        getCurrentParent().add(n);
+        Node parent = getCurrentParent();
+        parent.add(n);
+        fFlatTreeBuilder.add(n, parent);
         fNodeStack.push(n);
     }
 
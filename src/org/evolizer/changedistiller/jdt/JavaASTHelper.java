@@ -18,10 +18,16 @@ package org.evolizer.changedistiller.jdt;
 import java.lang.reflect.Field;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Vector;
 
 import org.eclipse.core.resources.IFile;
+import org.eclipse.jdt.core.ToolFactory;
+import org.eclipse.jdt.core.compiler.IScanner;
+import org.eclipse.jdt.core.compiler.ITerminalSymbols;
+import org.eclipse.jdt.core.compiler.InvalidInputException;
 import org.eclipse.jdt.core.dom.AST;
 import org.eclipse.jdt.core.dom.ASTNode;
 import org.eclipse.jdt.core.dom.ASTParser;
@@ -50,10 +56,12 @@ import org.evolizer.core.exceptions.EvolizerRuntimeException;
  */
 public final class JavaASTHelper extends AbstractASTHelper {
 
+    private static final String OPENING_BRACE = "{";
     private static Map<Integer, EntityType> sConversionMap = new HashMap<Integer, EntityType>();
     private CompilationUnit fCU;
     private Vector<Comment> fComments;
     private Document fSource;
+    private IScanner fScanner;
 
     /**
      * Creates a new AST helper.
@@ -136,6 +144,37 @@ public final class JavaASTHelper extends AbstractASTHelper {
         return createSourceCodeEntityInternal(structureEntityName, range);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> createBodyTokens(SourceRange range) {
+        ASTNode astNode = findCorrespondingNode(range);
+        int start = astNode.getStartPosition();
+        int end = start + astNode.getLength();
+        int bodyStart = start;
+        if (astNode.getNodeType() == ASTNode.METHOD_DECLARATION) {
+            MethodDeclaration md = (MethodDeclaration) astNode;
+            if (md.getJavadoc() != null) {
+                start = md.getJavadoc().getStartPosition() + md.getJavadoc().getLength();
+            }
+            bodyStart = (md.getBody() != null) ? md.getBody().getStartPosition() : end;
+        }
+        List<String> header = scanTokens(start, bodyStart);
+        List<String> body = scanTokens(bodyStart, end);
+        if ((header == null) || (body == null)) {
+            return null;
+        }
+        // comments in front of the body are attached to the body tree as well
+        for (String token : header) {
+            if (isComment(token)) {
+                header.addAll(body);
+                return header;
+            }
+        }
+        return body;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -145,6 +184,7 @@ public final class JavaASTHelper extends AbstractASTHelper {
         Node root = new Node(EntityType.ROOT_NODE, nodeName, createEntityFromASTNode(nodeName, astNode));
         JavaASTBodyTransformer st = new JavaASTBodyTransformer(root, astNode, fComments, fSource, this);
         astNode.accept(st);
+        st.createFlatTree();
         return root;
     }
 
@@ -156,6 +196,37 @@ public final class JavaASTHelper extends AbstractASTHelper {
         return createRootNode(findCorrespondingNode(range), structureEntityName);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> createDeclarationTokens(SourceRange range) {
+        ASTNode astNode = findCorrespondingNode(range);
+        int start = astNode.getStartPosition();
+        int end = start + astNode.getLength();
+        switch (astNode.getNodeType()) {
+            case ASTNode.METHOD_DECLARATION:
+                MethodDeclaration md = (MethodDeclaration) astNode;
+                if (md.getBody() != null) {
+                    end = md.getBody().getStartPosition();
+                }
+                return scanTokens(start, end);
+            case ASTNode.TYPE_DECLARATION:
+                // the declaration ends with the opening brace of the type body
+                int nameStart = ((TypeDeclaration) astNode).getName().getStartPosition();
+                List<String> result = scanTokens(start, nameStart);
+                List<String> tail = scanTokens(nameStart, end);
+                if ((result == null) || (tail == null)) {
+                    return null;
+                }
+                int bodyStart = tail.indexOf(OPENING_BRACE);
+                result.addAll(bodyStart > -1 ? tail.subList(0, bodyStart) : tail);
+                return result;
+            default:
+                return scanTokens(start, end);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -163,7 +234,9 @@ public final class JavaASTHelper extends AbstractASTHelper {
     public Node createDeclarationTree(String nodeName, SourceRange range) {
         ASTNode astNode = findCorrespondingNode(range);
         Node root = new Node(EntityType.ROOT_NODE, nodeName, createRootNode(astNode, nodeName));
-        astNode.accept(new JavaASTDeclarationTransformer(root, fSource, this));
+        JavaASTDeclarationTransformer dt = new JavaASTDeclarationTransformer(root, fSource, this);
+        astNode.accept(dt);
+        dt.createFlatTree();
         return root;
     }
 
@@ -280,6 +353,45 @@ public final class JavaASTHelper extends AbstractASTHelper {
         return entity;
     }
 
+    /**
+     * Scans the source between start (inclusive) and end (exclusive) into its tokens. Comments are kept as tokens,
+     * with their whitespace collapsed.
+     */
+    private List<String> scanTokens(int start, int end) {
+        List<String> result = new LinkedList<String>();
+        if (start >= end) {
+            return result;
+        }
+        if (fScanner == null) {
+            fScanner = ToolFactory.createScanner(true, false, false, false);
+            fScanner.setSource(fSource.get().toCharArray());
+        }
+        fScanner.resetTo(start, end - 1);
+        try {
+            int token = fScanner.getNextToken();
+            while (token != ITerminalSymbols.TokenNameEOF) {
+                String source = new String(fScanner.getCurrentTokenSource());
+                switch (token) {
+                    case ITerminalSymbols.TokenNameCOMMENT_BLOCK:
+                    case ITerminalSymbols.TokenNameCOMMENT_JAVADOC:
+                    case ITerminalSymbols.TokenNameCOMMENT_LINE:
+                        result.add(source.replaceAll("\\s+", " ").trim());
+                        break;
+                    default:
+                        result.add(source);
+                }
+                token = fScanner.getNextToken();
+            }
+        } catch (InvalidInputException e) {
+            return null;
+        }
+        return result;
+    }
+
+    private boolean isComment(String token) {
+        return token.startsWith("//") || token.startsWith("/*");
+    }
+
     private ASTNode findCorrespondingNode(SourceRange range) {
         return NodeFinder.perform(fCU, range.getOffset(), range.getLength());
     }
@@ -31,6 +31,10 @@ public class ChangeDistillerPreferenceInitializer extends AbstractPreferenceInit
     private final int fDynamicThresholdDepthValue = 4;
     private final double fDynamicThreshold = 0.4;
     private final double fNodeSimilarityThreshold = 0.6;
+    private final int fSmallTreeSize = 16;
+    private final int fLargeTreeSize = 1000;
+    private final int fParallelTreeSize = 2000;
+    private final int fParallelism = 1;
 
     /**
      * {@inheritDoc}
@@ -55,6 +59,10 @@ public class ChangeDistillerPreferenceInitializer extends AbstractPreferenceInit
         store.setDefault(
                 IChangeDistillerPreferenceConstants.LEAF_MATCHING,
                 IChangeDistillerPreferenceConstants.PREF_LEAF_MATCHING_BEST);
+        store.setDefault(IChangeDistillerPreferenceConstants.SMALL_TREE_SIZE, fSmallTreeSize);
+        store.setDefault(IChangeDistillerPreferenceConstants.LARGE_TREE_SIZE, fLargeTreeSize);
+        store.setDefault(IChangeDistillerPreferenceConstants.PARALLEL_TREE_SIZE, fParallelTreeSize);
+        store.setDefault(IChangeDistillerPreferenceConstants.PARALLELISM, fParallelism);
     }
 
 }
@@ -30,6 +30,7 @@ import org.eclipse.swt.widgets.Group;
 import org.eclipse.ui.IWorkbench;
 import org.eclipse.ui.IWorkbenchPreferencePage;
 import org.evolizer.changedistiller.ChangeDistillerPlugin;
+import org.evolizer.changedistiller.treedifferencing.matching.MatchingFactory;
 
 /**
  * This class represents a preference page that is contributed to the Preferences dialog. By subclassing
@@ -205,8 +206,34 @@ public class ChangeDistillerPreferencePage extends FieldEditorPreferencePage imp
                 Messages.sLeafMatching,
                 new String[][]{
                         {Messages.sLeafMatchingFirst, IChangeDistillerPreferenceConstants.PREF_LEAF_MATCHING_FIRST},
-                        {Messages.sLeafMatchingBest, IChangeDistillerPreferenceConstants.PREF_LEAF_MATCHING_BEST}},
+                        {Messages.sLeafMatchingBest, IChangeDistillerPreferenceConstants.PREF_LEAF_MATCHING_BEST},
+                        {
+                                Messages.sLeafMatchingLinear,
+                                IChangeDistillerPreferenceConstants.PREF_LEAF_MATCHING_LINEAR},
+                        {
+                                Messages.sLeafMatchingAdaptive,
+                                IChangeDistillerPreferenceConstants.PREF_LEAF_MATCHING_ADAPTIVE}},
                 getFieldEditorParent()));
+        addField(new IntegerFieldEditor(
+                IChangeDistillerPreferenceConstants.SMALL_TREE_SIZE,
+                Messages.sSmallTreeSize,
+                getFieldEditorParent(),
+                TEXT_LIMIT));
+        addField(new IntegerFieldEditor(
+                IChangeDistillerPreferenceConstants.LARGE_TREE_SIZE,
+                Messages.sLargeTreeSize,
+                getFieldEditorParent(),
+                TEXT_LIMIT));
+        addField(new IntegerFieldEditor(
+                IChangeDistillerPreferenceConstants.PARALLEL_TREE_SIZE,
+                Messages.sParallelTreeSize,
+                getFieldEditorParent(),
+                TEXT_LIMIT));
+        addField(new IntegerFieldEditor(
+                IChangeDistillerPreferenceConstants.PARALLELISM,
+                Messages.sParallelism,
+                getFieldEditorParent(),
+                TEXT_LIMIT));
         fStore = ChangeDistillerPlugin.getDefault().getPreferenceStore();
     }
 
@@ -231,6 +258,16 @@ public class ChangeDistillerPreferencePage extends FieldEditorPreferencePage imp
         fLeafNGramsValue.setEnabled(true, getFieldEditorParent());
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean performOk() {
+        boolean ok = super.performOk();
+        MatchingFactory.reloadConfiguration();
+        return ok;
+    }
+
     private static Composite createComposite(Composite parent, int columns, int hspan, int fill) {
         Composite g = new Composite(parent, SWT.NONE);
         g.setLayout(new GridLayout(columns, false));
@@ -29,6 +29,8 @@ public interface IChangeDistillerPreferenceConstants {
     String PREF_NODE_SIM_DICE = "dice";
     String PREF_LEAF_MATCHING_FIRST = "first_match";
     String PREF_LEAF_MATCHING_BEST = "best_match";
+    String PREF_LEAF_MATCHING_LINEAR = "linear_match";
+    String PREF_LEAF_MATCHING_ADAPTIVE = "adaptive_match";
 
     String LEAF_STRING_SIM = "leaf_string_sim";
     String LEAF_NGRAMS_VALUE = "leaf_ngrams_value";
@@ -43,4 +45,8 @@ public interface IChangeDistillerPreferenceConstants {
     String DYNAMIC_THRESHOLD = "dynamic_threshold";
     String LEAF_MATCHING = "leaf_matching";
     String NODE_STRING_SIM_NGRAMS_VALUE = "node_string_sim_ngrams_value";
+    String SMALL_TREE_SIZE = "small_tree_size";
+    String LARGE_TREE_SIZE = "large_tree_size";
+    String PARALLEL_TREE_SIZE = "parallel_tree_size";
+    String PARALLELISM = "parallelism";
 }
@@ -44,6 +44,12 @@ public class Messages extends NLS {
     public static String sNodeSimDice;
     public static String sLeafMatchingFirst;
     public static String sLeafMatchingBest;
+    public static String sLeafMatchingLinear;
+    public static String sLeafMatchingAdaptive;
+    public static String sSmallTreeSize;
+    public static String sLargeTreeSize;
+    public static String sParallelTreeSize;
+    public static String sParallelism;
 
     private static final String BUNDLE_NAME = "org.evolizer.changedistiller.preferences.messages"; //$NON-NLS-1$
 
@@ -0,0 +1,668 @@
+/*
+ * Copyright 2009 University of Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.evolizer.changedistiller.treedifferencing;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.evolizer.changedistiller.model.classifiers.EntityType;
+import org.evolizer.changedistiller.treedifferencing.matching.measure.IStringSimilarityCalculator;
+import org.evolizer.changedistiller.treedifferencing.matching.measure.TokenBasedCalculator;
+
+/**
+ * Compact, array-based representation of a {@link Node} tree.
+ * 
+ * <p>
+ * Every node of the tree is identified by an int id which is its number in pre-order, the root having id
+ * <code>0</code>. Structure, labels, and values are kept in parallel arrays indexed by id, so traversals do not
+ * allocate and do not follow node pointers. Hashes of the values, statistics of the subtrees, such as their number of
+ * leaves and their height, and the post-order and breadth-first sequences of the nodes are computed when the tree is
+ * built. A flat tree is attached to the nodes it was built from and is invalidated as soon as the structure or a value
+ * of one of its nodes changes.
+ * 
+ * @author fluri
+ * @see Node
+ */
+public final class FlatTree {
+
+    /**
+     * Id returned for a parent, child, or sibling that does not exist.
+     */
+    public static final int NO_NODE = -1;
+
+    private static final TokenBasedCalculator COMMENT_TOKENIZER = new TokenBasedCalculator();
+
+    private Node[] fNodes;
+    private int[] fParent;
+    private int[] fFirstChild;
+    private int[] fNextSibling;
+    private int[] fLabel;
+    private String[] fValue;
+    private long[] fValueHash;
+    private long[] fCommentHash;
+    private int[] fPostorderNumber;
+    private int[] fPostorder;
+    private int[] fBreadthFirst;
+    private int[] fLeaves;
+    private int[] fInnerNodes;
+    private int[] fSubtreeSize;
+    private int[] fLeafCount;
+    private int[] fCommentCount;
+    private int[] fHeight;
+    private long[] fSubtreeHash;
+    private Map<IStringSimilarityCalculator, StringProfiles> fProfiles;
+    private boolean fValid = true;
+
+    private FlatTree(int size) {
+        fNodes = new Node[size];
+        fParent = new int[size];
+        fFirstChild = new int[size];
+        fNextSibling = new int[size];
+        fLabel = new int[size];
+        fValue = new String[size];
+        fValueHash = new long[size];
+        fCommentHash = new long[size];
+        fPostorderNumber = new int[size];
+        fPostorder = new int[size];
+        fBreadthFirst = new int[size];
+        fSubtreeSize = new int[size];
+        fLeafCount = new int[size];
+        fCommentCount = new int[size];
+        fHeight = new int[size];
+    }
+
+    /**
+     * Returns the flat tree of the {@link Node} tree rooted at the given node. A valid flat tree already attached to
+     * the node is reused, otherwise a new one is built. Threads that share a tree they do not change get the same flat
+     * tree.
+     * 
+     * @param root
+     *            of the tree to flatten
+     * @return the flat tree rooted at the given node
+     */
+    public static FlatTree of(Node root) {
+        synchronized (root) {
+            FlatTree tree = root.getFlatTree();
+            if ((tree != null) && tree.fValid && (tree.fNodes[0] == root)) {
+                return tree;
+            }
+            return flatten(root);
+        }
+    }
+
+    /**
+     * Returns a valid flat tree the given node is part of. If the node is not part of one, the flat tree of the whole
+     * {@link Node} tree of the node is built. The subtree of the node is part of the same flat tree.
+     * 
+     * @param node
+     *            to get the flat tree for
+     * @return the flat tree containing the given node
+     */
+    public static FlatTree containing(Node node) {
+        FlatTree tree = node.getFlatTree();
+        if ((tree != null) && tree.fValid) {
+            return tree;
+        }
+        return of((Node) node.getRoot());
+    }
+
+    private static FlatTree flatten(Node root) {
+        Builder builder = new Builder();
+        List<Node> stack = new ArrayList<Node>();
+        stack.add(root);
+        builder.add(root, null);
+        while (!stack.isEmpty()) {
+            Node node = stack.remove(stack.size() - 1);
+            for (int i = node.getChildCount() - 1; i >= 0; i--) {
+                stack.add((Node) node.getChildAt(i));
+            }
+            if (node != root) {
+                builder.add(node, (Node) node.getParent());
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the number of nodes in this tree.
+     * 
+     * @return the number of nodes in this tree
+     */
+    public int size() {
+        return fNodes.length;
+    }
+
+    /**
+     * Returns whether this flat tree still reflects the {@link Node} tree it was built from.
+     * 
+     * @return <code>true</code> if no node of the tree was changed since this flat tree was built, <code>false</code>
+     *         otherwise
+     */
+    public boolean isValid() {
+        return fValid;
+    }
+
+    /**
+     * Returns the {@link Node} with the given id.
+     * 
+     * @param id
+     *            of the node
+     * @return the node with the given id
+     */
+    public Node getNode(int id) {
+        return fNodes[id];
+    }
+
+    /**
+     * Returns the id of the given {@link Node} in this tree.
+     * 
+     * @param node
+     *            to get the id for
+     * @return the id of the node, {@link #NO_NODE} if the node is not part of this tree
+     */
+    public int indexOf(Node node) {
+        return node.getFlatTree() == this ? node.getFlatIndex() : NO_NODE;
+    }
+
+    /**
+     * Returns the id of the parent of the node with the given id.
+     * 
+     * @param id
+     *            of the node
+     * @return the id of the parent, {@link #NO_NODE} for the root
+     */
+    public int getParent(int id) {
+        return fParent[id];
+    }
+
+    /**
+     * Returns the id of the first child of the node with the given id.
+     * 
+     * @param id
+     *            of the node
+     * @return the id of the first child, {@link #NO_NODE} for a leaf
+     */
+    public int getFirstChild(int id) {
+        return fFirstChild[id];
+    }
+
+    /**
+     * Returns the id of the next sibling of the node with the given id.
+     * 
+     * @param id
+     *            of the node
+     * @return the id of the next sibling, {@link #NO_NODE} for the last child
+     */
+    public int getNextSibling(int id) {
+        return fNextSibling[id];
+    }
+
+    /**
+     * Returns whether the node with the given id is a leaf.
+     * 
+     * @param id
+     *            of the node
+     * @return <code>true</code> if the node has no children, <code>false</code> otherwise
+     */
+    public boolean isLeaf(int id) {
+        return fFirstChild[id] == NO_NODE;
+    }
+
+    /**
+     * Returns the ordinal of the {@link EntityType} label of the node with the given id.
+     * 
+     * @param id
+     *            of the node
+     * @return the label ordinal of the node, {@link #NO_NODE} if the node has no label
+     */
+    public int getLabelOrdinal(int id) {
+        return fLabel[id];
+    }
+
+    /**
+     * Returns the value of the node with the given id.
+     * 
+     * @param id
+     *            of the node
+     * @return the value of the node
+     */
+    public String getValue(int id) {
+        return fValue[id];
+    }
+
+    /**
+     * Returns the hash of the value of the node with the given id. Nodes with equal values have the same hash.
+     * 
+     * @param id
+     *            of the node
+     * @return the hash of the value of the node
+     */
+    public long getValueHash(int id) {
+        return fValueHash[id];
+    }
+
+    /**
+     * Returns the hash of the comment tokens of the node with the given id, <code>0</code> if the node is not a
+     * comment. Two comments of the same kind that are equal for {@link TokenBasedCalculator} have the same hash.
+     * 
+     * @param id
+     *            of the node
+     * @return the hash of the comment tokens of the node
+     */
+    public long getCommentHash(int id) {
+        return fCommentHash[id];
+    }
+
+    /**
+     * Returns the pre-order number of the node with the given id, which is the id itself.
+     * 
+     * @param id
+     *            of the node
+     * @return the pre-order number of the node
+     */
+    public int getPreorderNumber(int id) {
+        return id;
+    }
+
+    /**
+     * Returns the post-order number of the node with the given id.
+     * 
+     * @param id
+     *            of the node
+     * @return the post-order number of the node
+     */
+    public int getPostorderNumber(int id) {
+        return fPostorderNumber[id];
+    }
+
+    /**
+     * Returns the id of the node with the given post-order number.
+     * 
+     * @param postorderNumber
+     *            of the node
+     * @return the id of the node
+     */
+    public int getNodeInPostorder(int postorderNumber) {
+        return fPostorder[postorderNumber];
+    }
+
+    /**
+     * Returns the id of the node with the given number in breadth-first order.
+     * 
+     * @param breadthFirstNumber
+     *            of the node
+     * @return the id of the node
+     */
+    public int getNodeInBreadthFirstOrder(int breadthFirstNumber) {
+        return fBreadthFirst[breadthFirstNumber];
+    }
+
+    /**
+     * Returns the id of the leaf with the given number among the leaves in post-order. The tree has
+     * <code>getLeafCount(0)</code> leaves.
+     * 
+     * @param number
+     *            of the leaf
+     * @return the id of the leaf
+     */
+    public int getLeafInPostorder(int number) {
+        return fLeaves[number];
+    }
+
+    /**
+     * Returns the id of the inner node with the given number among the inner nodes in post-order. The tree has
+     * <code>size() - getLeafCount(0)</code> inner nodes.
+     * 
+     * @param number
+     *            of the inner node
+     * @return the id of the inner node
+     */
+    public int getInnerNodeInPostorder(int number) {
+        return fInnerNodes[number];
+    }
+
+    /**
+     * Returns the structural hash of the subtree rooted at the node with the given id. The hash is computed out of the
+     * label, the value, and the hashes of the children in order, so isomorphic subtrees have the same hash. The hashes
+     * of all nodes are computed in one pass on first use.
+     * 
+     * @param id
+     *            of the node
+     * @return the structural hash of the subtree rooted at the node
+     */
+    public long getSubtreeHash(int id) {
+        return subtreeHashes()[id];
+    }
+
+    /**
+     * Returns whether the subtrees rooted at the given nodes of this and the other tree are isomorphic, i.e., have the
+     * same shape, labels, and values.
+     * 
+     * @param id
+     *            of the node in this tree
+     * @param other
+     *            tree
+     * @param otherId
+     *            of the node in the other tree
+     * @return <code>true</code> if the subtrees are isomorphic, <code>false</code> otherwise
+     */
+    public boolean isIsomorphic(int id, FlatTree other, int otherId) {
+        int size = getSubtreeSize(id);
+        if (size != other.getSubtreeSize(otherId)) {
+            return false;
+        }
+        // subtrees are contiguous in pre-order, so corresponding nodes have the same offset
+        for (int i = 0; i < size; i++) {
+            int a = id + i;
+            int b = otherId + i;
+            if ((fLabel[a] != other.fLabel[b]) || ((i > 0) && ((fParent[a] - id) != (other.fParent[b] - otherId)))) {
+                return false;
+            }
+            if ((fValue[a] == null) ? (other.fValue[b] != null) : !fValue[a].equals(other.fValue[b])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of nodes in the subtree rooted at the node with the given id. Its nodes have the ids
+     * <code>id</code> to <code>id + getSubtreeSize(id) - 1</code>.
+     * 
+     * @param id
+     *            of the node
+     * @return the number of nodes in the subtree rooted at the node
+     */
+    public int getSubtreeSize(int id) {
+        return fSubtreeSize[id];
+    }
+
+    /**
+     * Returns the number of leaves in the subtree rooted at the node with the given id, the node itself included.
+     * 
+     * @param id
+     *            of the node
+     * @return the number of leaves in the subtree rooted at the node
+     */
+    public int getLeafCount(int id) {
+        return fLeafCount[id];
+    }
+
+    /**
+     * Returns the number of comments in the subtree rooted at the node with the given id, the node itself included.
+     * 
+     * @param id
+     *            of the node
+     * @return the number of comments in the subtree rooted at the node
+     */
+    public int getCommentCount(int id) {
+        return fCommentCount[id];
+    }
+
+    /**
+     * Returns the height of the subtree rooted at the node with the given id, which is the longest distance from the
+     * node to a leaf.
+     * 
+     * @param id
+     *            of the node
+     * @return the height of the subtree rooted at the node, <code>0</code> for a leaf
+     */
+    public int getHeight(int id) {
+        return fHeight[id];
+    }
+
+    /**
+     * Returns the profiles of the values of the nodes for the given calculator. They are kept as long as this flat
+     * tree, so every calculation with the flat tree uses the same profiles.
+     * 
+     * @param calculator
+     *            to prepare the profiles with
+     * @return the profiles of the values for the calculator
+     */
+    public synchronized StringProfiles getProfiles(IStringSimilarityCalculator calculator) {
+        if (fProfiles == null) {
+            fProfiles = new IdentityHashMap<IStringSimilarityCalculator, StringProfiles>();
+        }
+        StringProfiles profiles = fProfiles.get(calculator);
+        if (profiles == null) {
+            profiles = new StringProfiles(this, calculator);
+            fProfiles.put(calculator, profiles);
+        }
+        return profiles;
+    }
+
+    private synchronized long[] subtreeHashes() {
+        if (fSubtreeHash == null) {
+            long[] hash = new long[size()];
+            // children have higher ids than their parent
+            for (int id = size() - 1; id >= 0; id--) {
+                long h = mix((fLabel[id] + 1) * 0x9E3779B97F4A7C15L ^ fValueHash[id]);
+                for (int c = fFirstChild[id]; c != NO_NODE; c = fNextSibling[c]) {
+                    h = mix(h ^ hash[c]);
+                }
+                hash[id] = mix(h ^ 0x2545F4914F6CDD1DL);
+            }
+            fSubtreeHash = hash;
+        }
+        return fSubtreeHash;
+    }
+
+    private static long valueHash(String value) {
+        if (value == null) {
+            return 0L;
+        }
+        // FNV-1a
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        return h;
+    }
+
+    private static long commentHash(String comment) {
+        if (comment == null) {
+            return 0L;
+        }
+        // the tokens are compared regardless of their order
+        String[] tokens = COMMENT_TOKENIZER.tokenize(comment);
+        long h = tokens.length;
+        for (String token : tokens) {
+            h += mix(valueHash(token));
+        }
+        return h;
+    }
+
+    private static boolean isComment(EntityType label) {
+        return (label == EntityType.JAVADOC) || (label == EntityType.BLOCK_COMMENT)
+                || (label == EntityType.LINE_COMMENT);
+    }
+
+    private static long mix(long h) {
+        long z = h * 0xBF58476D1CE4E5B9L;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Marks this flat tree as no longer reflecting its {@link Node} tree.
+     */
+    void invalidate() {
+        fValid = false;
+    }
+
+    /**
+     * Builder for a {@link FlatTree}. Nodes are added together with their parent; the parent has to be added first.
+     * Children of a node are kept in the order they are added.
+     * 
+     * @author fluri
+     */
+    public static final class Builder {
+
+        private Node[] fNodes = new Node[16];
+        private int[] fParent = new int[16];
+        private int fSize;
+
+        /**
+         * Adds a {@link Node} to the tree to build.
+         * 
+         * @param node
+         *            to add
+         * @param parent
+         *            of the node, <code>null</code> for the root
+         */
+        public void add(Node node, Node parent) {
+            int parentIndex = NO_NODE;
+            if (parent != null) {
+                parentIndex = parent.getFlatIndex();
+                if ((parentIndex < 0) || (parentIndex >= fSize) || (fNodes[parentIndex] != parent)) {
+                    throw new IllegalArgumentException("Parent must be added before its children.");
+                }
+            } else if (fSize > 0) {
+                throw new IllegalArgumentException("A flat tree has exactly one root.");
+            }
+            if (fSize == fNodes.length) {
+                Node[] nodes = new Node[fSize * 2];
+                System.arraycopy(fNodes, 0, nodes, 0, fSize);
+                fNodes = nodes;
+                int[] parents = new int[fSize * 2];
+                System.arraycopy(fParent, 0, parents, 0, fSize);
+                fParent = parents;
+            }
+            node.setFlatTree(null, fSize);
+            fNodes[fSize] = node;
+            fParent[fSize] = parentIndex;
+            fSize++;
+        }
+
+        /**
+         * Builds the flat tree out of the added nodes and attaches it to them.
+         * 
+         * @return the flat tree
+         */
+        public FlatTree build() {
+            int n = fSize;
+            if (n == 0) {
+                throw new IllegalStateException("A flat tree needs a root.");
+            }
+
+            // children in the order they were added
+            int[] firstChild = new int[n];
+            int[] lastChild = new int[n];
+            int[] nextSibling = new int[n];
+            for (int i = 0; i < n; i++) {
+                firstChild[i] = NO_NODE;
+                nextSibling[i] = NO_NODE;
+            }
+            for (int i = 1; i < n; i++) {
+                int p = fParent[i];
+                if (firstChild[p] == NO_NODE) {
+                    firstChild[p] = i;
+                } else {
+                    nextSibling[lastChild[p]] = i;
+                }
+                lastChild[p] = i;
+            }
+
+            // renumber in pre-order; usually the order of addition already is
+            int[] preorder = new int[n];
+            int[] stack = new int[n];
+            int top = 0;
+            int count = 0;
+            stack[top++] = 0;
+            while (top > 0) {
+                int node = stack[--top];
+                preorder[node] = count++;
+                int childCount = 0;
+                for (int c = firstChild[node]; c != NO_NODE; c = nextSibling[c]) {
+                    stack[top++] = c;
+                    childCount++;
+                }
+                // reverse the children just pushed so the leftmost one is popped first
+                for (int i = top - childCount, j = top - 1; i < j; i++, j--) {
+                    int tmp = stack[i];
+                    stack[i] = stack[j];
+                    stack[j] = tmp;
+                }
+            }
+
+            FlatTree tree = new FlatTree(n);
+            for (int i = 0; i < n; i++) {
+                int id = preorder[i];
+                Node node = fNodes[i];
+                tree.fNodes[id] = node;
+                tree.fParent[id] = fParent[i] == NO_NODE ? NO_NODE : preorder[fParent[i]];
+                tree.fFirstChild[id] = firstChild[i] == NO_NODE ? NO_NODE : preorder[firstChild[i]];
+                tree.fNextSibling[id] = nextSibling[i] == NO_NODE ? NO_NODE : preorder[nextSibling[i]];
+                EntityType label = node.getLabel();
+                tree.fLabel[id] = label != null ? label.ordinal() : NO_NODE;
+                tree.fValue[id] = node.getValue();
+                tree.fValueHash[id] = valueHash(tree.fValue[id]);
+                if (isComment(label)) {
+                    tree.fCommentHash[id] = commentHash(tree.fValue[id]);
+                }
+            }
+
+            // post(v) = pre(v) + size(v) - 1 - depth(v)
+            int[] size = tree.fSubtreeSize;
+            int[] depth = new int[n];
+            for (int id = 0; id < n; id++) {
+                size[id] = 1;
+                depth[id] = id == 0 ? 0 : depth[tree.fParent[id]] + 1;
+                tree.fLeafCount[id] = tree.fFirstChild[id] == NO_NODE ? 1 : 0;
+                tree.fCommentCount[id] = isComment(tree.fNodes[id].getLabel()) ? 1 : 0;
+            }
+            // children have higher ids than their parent, so each subtree is complete before it is added to its parent
+            for (int id = n - 1; id > 0; id--) {
+                int parent = tree.fParent[id];
+                size[parent] += size[id];
+                tree.fLeafCount[parent] += tree.fLeafCount[id];
+                tree.fCommentCount[parent] += tree.fCommentCount[id];
+                tree.fHeight[parent] = Math.max(tree.fHeight[parent], tree.fHeight[id] + 1);
+            }
+            for (int id = 0; id < n; id++) {
+                int post = id + size[id] - 1 - depth[id];
+                tree.fPostorderNumber[id] = post;
+                tree.fPostorder[post] = id;
+            }
+            tree.fLeaves = new int[tree.fLeafCount[0]];
+            tree.fInnerNodes = new int[n - tree.fLeafCount[0]];
+            int leaves = 0;
+            int innerNodes = 0;
+            for (int post = 0; post < n; post++) {
+                int id = tree.fPostorder[post];
+                if (tree.fFirstChild[id] == NO_NODE) {
+                    tree.fLeaves[leaves++] = id;
+                } else {
+                    tree.fInnerNodes[innerNodes++] = id;
+                }
+            }
+            int tail = 0;
+            tree.fBreadthFirst[tail++] = 0;
+            for (int head = 0; head < n; head++) {
+                for (int c = tree.fFirstChild[tree.fBreadthFirst[head]]; c != NO_NODE; c = tree.fNextSibling[c]) {
+                    tree.fBreadthFirst[tail++] = c;
+                }
+            }
+
+            for (int id = 0; id < n; id++) {
+                tree.fNodes[id].setFlatTree(tree, id);
+            }
+            return tree;
+        }
+    }
+}
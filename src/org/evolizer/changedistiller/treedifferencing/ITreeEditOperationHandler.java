@@ -0,0 +1,38 @@
+/*
+ * Copyright 2009 University of Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.evolizer.changedistiller.treedifferencing;
+
+/**
+ * Interface for consumers of the {@link ITreeEditOperation}s that {@link TreeDifferencer} produces.
+ * 
+ * <p>
+ * The operations are passed in edit script order, each as soon as it is generated.
+ * 
+ * @author fluri
+ * @see TreeDifferencer#calculateEditScript(Node, Node, ITreeEditOperationHandler)
+ */
+public interface ITreeEditOperationHandler {
+
+    /**
+     * Handles the next operation of the edit script.
+     * 
+     * @param operation
+     *            the operation to handle
+     * @return <code>true</code> if the edit script calculation should go on, <code>false</code> if the handler has
+     *         seen enough and the calculation should stop
+     */
+    boolean handle(ITreeEditOperation operation);
+}
@@ -85,7 +85,8 @@ public interface ITreeMatcher {
     void match(Node left, Node right);
 
     /**
-     * Sets the matching set where match(Node, Node) stores the matching.
+     * Sets the matching set where match(Node, Node) stores the matching. A {@link NodeMatching} may be passed to have
+     * the matching indexed in both directions while it is built.
      * 
      * @param matchingSet
      *            set in which the matching is stored
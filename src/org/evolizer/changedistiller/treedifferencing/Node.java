@@ -16,9 +16,11 @@
 package org.evolizer.changedistiller.treedifferencing;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.MutableTreeNode;
 
 import org.evolizer.changedistiller.model.classifiers.EntityType;
 import org.evolizer.changedistiller.model.entities.SourceCodeEntity;
@@ -42,7 +44,9 @@ public class Node extends DefaultMutableTreeNode {
     private EntityType fLabel;
     private String fValue;
     private SourceCodeEntity fEntity;
-    private List<Node> fAssociatedNodes = new ArrayList<Node>();
+    private List<Node> fAssociatedNodes;
+    private FlatTree fFlatTree;
+    private int fFlatIndex = FlatTree.NO_NODE;
 
     /**
      * Creates a new node.
@@ -162,6 +166,7 @@ public class Node extends DefaultMutableTreeNode {
      */
     public void setValue(String value) {
         fValue = value;
+        invalidateFlatTree();
     }
 
     /**
@@ -170,6 +175,9 @@ public class Node extends DefaultMutableTreeNode {
      * @return the associated nodes of this node
      */
     public List<Node> getAssociatedNodes() {
+        if (fAssociatedNodes == null) {
+            return Collections.emptyList();
+        }
         return fAssociatedNodes;
     }
 
@@ -180,10 +188,91 @@ public class Node extends DefaultMutableTreeNode {
      *            to add as associated node
      */
     public void addAssociatedNode(Node node) {
+        if (fAssociatedNodes == null) {
+            fAssociatedNodes = new ArrayList<Node>(2);
+        }
         fAssociatedNodes.add(node);
         getEntity().addAssociatedEntity(node.getEntity());
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void insert(MutableTreeNode newChild, int childIndex) {
+        super.insert(newChild, childIndex);
+        invalidateFlatTree();
+        if (newChild instanceof Node) {
+            ((Node) newChild).invalidateFlatTree();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void remove(int childIndex) {
+        Node child = (Node) getChildAt(childIndex);
+        super.remove(childIndex);
+        invalidateFlatTree();
+        child.invalidateFlatTree();
+    }
+
+    /**
+     * Returns the number of leaves in the subtree of this node, which is cached in the {@link FlatTree} of the node.
+     * 
+     * @return the number of leaves in the subtree of this node
+     */
+    @Override
+    public int getLeafCount() {
+        FlatTree tree = FlatTree.containing(this);
+        return tree.getLeafCount(tree.indexOf(this));
+    }
+
+    /**
+     * Returns the number of comments in the subtree of this node, which is cached in the {@link FlatTree} of the node.
+     * 
+     * @return the number of comments in the subtree of this node
+     */
+    public int getCommentCount() {
+        FlatTree tree = FlatTree.containing(this);
+        return tree.getCommentCount(tree.indexOf(this));
+    }
+
+    /**
+     * Returns the number of nodes in the subtree of this node, which is cached in the {@link FlatTree} of the node.
+     * 
+     * @return the number of nodes in the subtree of this node
+     */
+    public int getSubtreeSize() {
+        FlatTree tree = FlatTree.containing(this);
+        return tree.getSubtreeSize(tree.indexOf(this));
+    }
+
+    /**
+     * Returns the longest distance from this node to a leaf, which is cached in the {@link FlatTree} of the node.
+     * 
+     * @return the depth of the tree rooted at this node
+     */
+    @Override
+    public int getDepth() {
+        FlatTree tree = FlatTree.containing(this);
+        return tree.getHeight(tree.indexOf(this));
+    }
+
+    /**
+     * Returns a copy of this node that has no parent, no children, and is not part of a {@link FlatTree}.
+     * 
+     * @return a copy of this node
+     */
+    @Override
+    public Object clone() {
+        Node clone = (Node) super.clone();
+        clone.fFlatTree = null;
+        clone.fFlatIndex = FlatTree.NO_NODE;
+        return clone;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -200,4 +289,30 @@ public class Node extends DefaultMutableTreeNode {
     public SourceCodeEntity getEntity() {
         return fEntity;
     }
+
+    FlatTree getFlatTree() {
+        return fFlatTree;
+    }
+
+    int getFlatIndex() {
+        return fFlatIndex;
+    }
+
+    /**
+     * Attaches this node to a {@link FlatTree}. A node is part of at most one flat tree; the one it was part of before
+     * is invalidated.
+     */
+    void setFlatTree(FlatTree tree, int index) {
+        if ((fFlatTree != null) && (fFlatTree != tree)) {
+            fFlatTree.invalidate();
+        }
+        fFlatTree = tree;
+        fFlatIndex = index;
+    }
+
+    private void invalidateFlatTree() {
+        if (fFlatTree != null) {
+            fFlatTree.invalidate();
+        }
+    }
 }
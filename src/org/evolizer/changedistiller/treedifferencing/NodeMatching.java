@@ -0,0 +1,226 @@
+/*
+ * Copyright 2009 University of Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.evolizer.changedistiller.treedifferencing;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Matching between the nodes of a left and a right {@link Node} tree.
+ * 
+ * <p>
+ * The matching is a set of {@link NodePair}s that is indexed in both directions by node identity. Whether a pair is
+ * contained as well as the partner of a left or a right node are answered in constant time. A node takes part in at
+ * most one pair; adding a pair replaces the pairs its nodes were part of before. Iteration follows insertion order.
+ * 
+ * @author fluri
+ * @see ITreeMatcher
+ * @see TreeDifferencer
+ */
+public class NodeMatching extends AbstractSet<NodePair> {
+
+    private List<NodePair> fPairs;
+    private IdentityHashMap<Node, NodePair> fLeftIndex;
+    private IdentityHashMap<Node, NodePair> fRightIndex;
+    private int fLeafModificationCount;
+
+    /**
+     * Creates a new empty matching.
+     */
+    public NodeMatching() {
+        fPairs = new ArrayList<NodePair>();
+        fLeftIndex = new IdentityHashMap<Node, NodePair>();
+        fRightIndex = new IdentityHashMap<Node, NodePair>();
+    }
+
+    /**
+     * Creates a new matching that contains the given pairs.
+     * 
+     * @param pairs
+     *            to add to the matching
+     */
+    public NodeMatching(Collection<? extends NodePair> pairs) {
+        fPairs = new ArrayList<NodePair>(pairs.size());
+        fLeftIndex = new IdentityHashMap<Node, NodePair>(pairs.size());
+        fRightIndex = new IdentityHashMap<Node, NodePair>(pairs.size());
+        addAll(pairs);
+    }
+
+    /**
+     * Adds the given pair to the matching. Pairs that contain the left or the right node of the given pair are removed.
+     * 
+     * @param pair
+     *            to add
+     * @return <code>true</code> if the matching changed, <code>false</code> if the pair was already contained
+     */
+    @Override
+    public boolean add(NodePair pair) {
+        if (contains(pair)) {
+            return false;
+        }
+        removePair(fLeftIndex.get(pair.getLeft()));
+        removePair(fRightIndex.get(pair.getRight()));
+        fPairs.add(pair);
+        fLeftIndex.put(pair.getLeft(), pair);
+        fRightIndex.put(pair.getRight(), pair);
+        countLeafModification(pair);
+        return true;
+    }
+
+    /**
+     * Returns whether the left and the right {@link Node} are matched with each other.
+     * 
+     * @param left
+     *            node of the left tree
+     * @param right
+     *            node of the right tree
+     * @return <code>true</code> if (left, right) is contained in the matching, <code>false</code> otherwise
+     */
+    public boolean contains(Node left, Node right) {
+        NodePair pair = fLeftIndex.get(left);
+        return (pair != null) && (pair.getRight() == right);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean contains(Object o) {
+        if (o instanceof NodePair) {
+            NodePair pair = (NodePair) o;
+            return fLeftIndex.get(pair.getLeft()) == pair;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the partner of the given left {@link Node}.
+     * 
+     * @param left
+     *            node of the left tree
+     * @return the node of the right tree the given node is matched with, <code>null</code> if it is unmatched
+     */
+    public Node getRightPartner(Node left) {
+        NodePair pair = fLeftIndex.get(left);
+        return pair != null ? pair.getRight() : null;
+    }
+
+    /**
+     * Returns the partner of the given right {@link Node}.
+     * 
+     * @param right
+     *            node of the right tree
+     * @return the node of the left tree the given node is matched with, <code>null</code> if it is unmatched
+     */
+    public Node getLeftPartner(Node right) {
+        NodePair pair = fRightIndex.get(right);
+        return pair != null ? pair.getLeft() : null;
+    }
+
+    /**
+     * Returns the number of times a pair of two leaves was added to or removed from this matching. Information derived
+     * from the pairs of leaves stays up to date as long as the count does not change.
+     * 
+     * @return the number of modifications of pairs of leaves
+     */
+    public int getLeafModificationCount() {
+        return fLeafModificationCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean remove(Object o) {
+        if (contains(o)) {
+            removePair((NodePair) o);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        fLeafModificationCount++;
+        fPairs.clear();
+        fLeftIndex.clear();
+        fRightIndex.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return fPairs.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<NodePair> iterator() {
+        return new Iterator<NodePair>() {
+
+            private int fNext;
+            private NodePair fLast;
+
+            public boolean hasNext() {
+                return fNext < fPairs.size();
+            }
+
+            public NodePair next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                fLast = fPairs.get(fNext++);
+                return fLast;
+            }
+
+            public void remove() {
+                if (fLast == null) {
+                    throw new IllegalStateException();
+                }
+                removePair(fLast);
+                fLast = null;
+                fNext--;
+            }
+        };
+    }
+
+    private void removePair(NodePair pair) {
+        if (pair != null) {
+            fPairs.remove(pair);
+            fLeftIndex.remove(pair.getLeft());
+            fRightIndex.remove(pair.getRight());
+            countLeafModification(pair);
+        }
+    }
+
+    private void countLeafModification(NodePair pair) {
+        if (pair.getLeft().isLeaf() && pair.getRight().isLeaf()) {
+            fLeafModificationCount++;
+        }
+    }
+}
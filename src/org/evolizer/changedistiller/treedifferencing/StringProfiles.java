@@ -0,0 +1,76 @@
+/*
+ * Copyright 2009 University of Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.evolizer.changedistiller.treedifferencing;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.evolizer.changedistiller.treedifferencing.matching.measure.IStringSimilarityCalculator;
+
+/**
+ * Profiles of the values of the nodes of a {@link FlatTree} for a {@link IStringSimilarityCalculator}.
+ * 
+ * <p>
+ * The profile of a value is prepared when it is first needed and kept as long as the flat tree, so a value compared
+ * with many others is only prepared once. Profiles may be requested by several threads; a profile prepared by two of
+ * them at the same time is equal in both.
+ * 
+ * @author fluri
+ * @see FlatTree#getProfiles(IStringSimilarityCalculator)
+ */
+public final class StringProfiles {
+
+    private FlatTree fTree;
+    private IStringSimilarityCalculator fCalculator;
+    private AtomicReferenceArray<Object> fProfiles;
+
+    StringProfiles(FlatTree tree, IStringSimilarityCalculator calculator) {
+        fTree = tree;
+        fCalculator = calculator;
+        fProfiles = new AtomicReferenceArray<Object>(tree.size());
+    }
+
+    /**
+     * Returns the profile of the value of the node with the given id.
+     * 
+     * @param id
+     *            of the node
+     * @return the profile of the value of the node, <code>null</code> if the node has no value
+     */
+    public Object getProfile(int id) {
+        Object profile = fProfiles.get(id);
+        if ((profile == null) && (fTree.getValue(id) != null)) {
+            profile = fCalculator.prepareProfile(fTree.getValue(id));
+            fProfiles.set(id, profile);
+        }
+        return profile;
+    }
+
+    /**
+     * Returns the similarity between the value of a node of this tree and the value of a node of the other tree, as
+     * calculated by the calculator of these profiles.
+     * 
+     * @param id
+     *            of the node in this tree
+     * @param other
+     *            profiles of the other tree for the same calculator
+     * @param otherId
+     *            of the node in the other tree
+     * @return the similarity between the values of the two nodes
+     */
+    public double calculateSimilarity(int id, StringProfiles other, int otherId) {
+        return fCalculator.calculateProfileSimilarity(getProfile(id), other.getProfile(otherId));
+    }
+}
@@ -15,12 +15,9 @@
  */
 package org.evolizer.changedistiller.treedifferencing;
 
-import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 
 import org.evolizer.changedistiller.model.classifiers.EntityType;
 import org.evolizer.changedistiller.treedifferencing.matching.MatchingFactory;
@@ -35,25 +32,73 @@ import org.evolizer.changedistiller.treedifferencing.operation.UpdateOperation;
  * generates a matching between the nodes of both trees and calculates an edit script of {@link ITreeEditOperation} that
  * transform the left into the right tree.
  * 
+ * <p>
+ * The matching, the "in order" marks, and the left tree as it is transformed are kept in tables owned by the
+ * differencer. By default, the edit operations are also applied to the left tree. With
+ * {@link #disableTreeTransformation()} both trees stay untouched, so they can be differenced again or by other
+ * differencers at the same time.
+ * 
+ * <p>
+ * A differencer is meant to be reused for many pairs of trees. It builds its matcher once and keeps its tables between
+ * calculations, growing them only when a larger pair of trees comes along.
+ * 
  * @author fluri
  * @see ITreeEditOperation
  * @see Node
  */
 public class TreeDifferencer {
 
-    private static final int UP = 1;
-    private static final int LEFT = 2;
-    private static final int DIAG = 3;
+    private NodeMatching fMatch = new NodeMatching();
+    private ITreeMatcher fMatcher;
 
-    private Set<NodePair> fMatch;
-    private HashMap<Node, Node> fLeftToRightMatch;
-    private HashMap<Node, Node> fRightToLeftMatch;
+    private List<ITreeEditOperation> fEditScript;
+    private ITreeEditOperationHandler fHandler;
+    private boolean fStopped;
+    private boolean fTransformationEnabled = true;
+    private TokenBasedCalculator fCommentSimilarityCalculator = new TokenBasedCalculator();
+
+    // T1 while it is transformed and T2
+    private VirtualTree fLeftTree = new VirtualTree();
+    private FlatTree fRightTree;
+
+    // profiles of the values of T1 and T2 for the comparison of comments
+    private StringProfiles fLeftComments;
+    private StringProfiles fRightComments;
+
+    // M': partner in T2 of each node of T1 and vice versa, FlatTree.NO_NODE if there is none
+    private int[] fRightPartner = new int[0];
+    private int[] fLeftPartner = new int[0];
+
+    // "in order" marks of T2, kept on a copy of its structure
+    private VirtualTree fRightOrder = new VirtualTree();
+
+    // scratch space, reused between calls
+    private int[] fLeftSequence = new int[0];
+    private int[] fRightSequence = new int[0];
+    private int[] fSequencePosition = new int[0];
+    private int[] fPartnerPosition = new int[0];
+    private int[] fTails = new int[0];
+    private int[] fPileHead = new int[0];
+    private int[] fPileTail = new int[0];
+    private int[] fPileNext = new int[0];
+    private int[] fDeleteStack = new int[0];
+    private int[] fDeleteNext = new int[0];
 
-    private HashSet<NodePair> fMatchPrime;
-    private HashMap<Node, Node> fLeftToRightMatchPrime;
-    private HashMap<Node, Node> fRightToLeftMatchPrime;
+    /**
+     * The edit operations are applied to the left tree while the edit script is calculated, which transforms it into
+     * the right tree. This is the default.
+     */
+    public void enableTreeTransformation() {
+        fTransformationEnabled = true;
+    }
 
-    private List<ITreeEditOperation> fEditScript;
+    /**
+     * The edit operations are only simulated, the left tree stays untouched. The nodes the operations refer to keep
+     * their parent in the left tree; inserted nodes are copies of the right tree nodes without parent.
+     */
+    public void disableTreeTransformation() {
+        fTransformationEnabled = false;
+    }
 
     /**
      * Calculates the edit script of {@link ITreeEditOperation} between the left and the right {@link Node} trees.
@@ -64,127 +109,206 @@ public class TreeDifferencer {
      *            tree to calculate the edit script for
      */
     public void calculateEditScript(Node left, Node right) {
-        fMatch = new HashSet<NodePair>();
-
-        ITreeMatcher dnm = MatchingFactory.getMatcher(fMatch);
-        dnm.match(left, right);
-        fLeftToRightMatch = new HashMap<Node, Node>();
-        fRightToLeftMatch = new HashMap<Node, Node>();
-        for (NodePair p : fMatch) {
-            fLeftToRightMatch.put(p.getLeft(), p.getRight());
-            fRightToLeftMatch.put(p.getRight(), p.getLeft());
+        final List<ITreeEditOperation> editScript = new LinkedList<ITreeEditOperation>();
+        calculateEditScript(left, right, new ITreeEditOperationHandler() {
+
+            public boolean handle(ITreeEditOperation operation) {
+                editScript.add(operation);
+                return true;
+            }
+        });
+        fEditScript = editScript;
+    }
+
+    /**
+     * Calculates the edit script of {@link ITreeEditOperation} between the left and the right {@link Node} trees and
+     * passes each operation to the given handler as soon as it is generated, instead of collecting the edit script.
+     * 
+     * <p>
+     * An operation is passed once it is applied to the left tree, or to its copy if tree transformation is disabled. In
+     * particular, an updated node already has its final parent. The calculation stops as soon as the handler returns
+     * <code>false</code>; the left tree is then only partially transformed.
+     * 
+     * @param left
+     *            tree to calculate the edit script for
+     * @param right
+     *            tree to calculate the edit script for
+     * @param handler
+     *            to pass the operations of the edit script to
+     * @return <code>true</code> if the whole edit script was passed to the handler, <code>false</code> if the handler
+     *         stopped the calculation
+     */
+    public boolean calculateEditScript(Node left, Node right, ITreeEditOperationHandler handler) {
+        reset();
+        fHandler = handler;
+        if (fMatcher == null) {
+            fMatcher = MatchingFactory.getMatcher(fMatch);
         }
+        fMatcher.match(left, right);
         editScript(left, right);
+        releaseTrees();
+        return !fStopped;
+    }
+
+    /**
+     * Discards the matching and the edit script of the last calculation. The tables of the differencer are kept and
+     * reused by the next calculation, which starts with a reset; a reused differencer calculates the same edit scripts
+     * as a new one.
+     */
+    public void reset() {
+        fMatch.clear();
+        fEditScript = null;
+        fStopped = false;
+        releaseTrees();
     }
 
     /**
-     * Returns the edit script calculated between the two {@link Node} trees.
+     * Returns the edit script calculated between the two {@link Node} trees by
+     * {@link #calculateEditScript(Node, Node)}.
      * 
-     * @return the edit script calculated between the two trees
+     * @return the edit script calculated between the two trees, <code>null</code> if the operations were passed to an
+     *         {@link ITreeEditOperationHandler}
      */
     public List<ITreeEditOperation> getEditScript() {
         return fEditScript;
     }
 
-    @SuppressWarnings("unchecked")
     private void editScript(Node left, Node right) {
         // 1.
-        // E <- {}
-        fEditScript = new LinkedList<ITreeEditOperation>();
+        // E <- {} : E is passed to the handler
+        FlatTree leftTree = FlatTree.of(left);
+        FlatTree rightTree = FlatTree.of(right);
+        fRightTree = rightTree;
+        fLeftComments = leftTree.getProfiles(fCommentSimilarityCalculator);
+        fRightComments = rightTree.getProfiles(fCommentSimilarityCalculator);
+        // every node of T2 is inserted at most once into T1
+        int capacity = leftTree.size() + rightTree.size();
+        fLeftTree.copy(leftTree, capacity);
 
         // M' <- M
-        fMatchPrime = new HashSet(fMatch);
-        fLeftToRightMatchPrime = fLeftToRightMatch;
-        fRightToLeftMatchPrime = fRightToLeftMatch;
+        if (fRightPartner.length < capacity) {
+            fRightPartner = new int[capacity];
+        }
+        if (fLeftPartner.length < rightTree.size()) {
+            fLeftPartner = new int[rightTree.size()];
+        }
+        fRightOrder.copy(rightTree, rightTree.size());
+        Arrays.fill(fRightPartner, 0, capacity, FlatTree.NO_NODE);
+        Arrays.fill(fLeftPartner, 0, rightTree.size(), FlatTree.NO_NODE);
+        for (NodePair pair : fMatch) {
+            addMatchToPrimes(leftTree.indexOf(pair.getLeft()), rightTree.indexOf(pair.getRight()));
+        }
 
         // 2.
         // Visit the nodes in T2 in breath-first order
-        Enumeration breathFirst = right.breadthFirstEnumeration();
         // skip MethodDeclaration
-        while (breathFirst.hasMoreElements()) {
+        for (int i = 0; i < rightTree.size(); i++) {
+            int x = rightTree.getNodeInBreadthFirstOrder(i);
 
             // (a)
             // Let x be the current node in the breath-first search T2
-            Node /* T2 */x = (Node) breathFirst.nextElement();
+            Node /* T2 */xNode = rightTree.getNode(x);
 
             // Let y = p(x)
-            Node /* T2 */y = (Node) x.getParent();
+            int /* T2 */y = rightTree.getParent(x);
 
             // Let z be the partner of y in M' (*)
-            Node /* T1 */z = fRightToLeftMatchPrime.get(y);
-            Node /* T1 */w = fRightToLeftMatchPrime.get(x);
+            int /* T1 */z = y != FlatTree.NO_NODE ? fLeftPartner[y] : FlatTree.NO_NODE;
+            int /* T1 */w = fLeftPartner[x];
 
             // (b) If x has no partner in M'
-            if (fRightToLeftMatchPrime.get(x) == null) {
+            if (w == FlatTree.NO_NODE) {
                 // i. k <- FindPos(x)
                 int k = findPosition(x);
 
                 // ii. Append INS((w, a, v(x)), z, k) to E, for a new identifier w.
-                w = (Node) x.clone();
-                w.enableMatched();
-                x.enableMatched();
-                ITreeEditOperation insert = new InsertOperation(w, z, k);
-                fEditScript.add(insert);
+                Node wNode = (Node) xNode.clone();
+                ITreeEditOperation insert = new InsertOperation(wNode, fLeftTree.getNode(z), k);
 
                 // iii. Add (w, x) to M' and apply INS((w, a, v(x)), z, k) to T1
-                addMatchToPrimes(x, w);
-                insert.apply();
+                w = fLeftTree.insert(wNode, z, k);
+                addMatchToPrimes(w, x);
+                apply(insert);
+                if (!handle(insert)) {
+                    return;
+                }
 
                 // (c) else if x is not a root (x has a partner in M')
-            } else if (!x.isRoot()) {
+            } else if (y != FlatTree.NO_NODE) {
                 // i.
                 // Let w be the partner of x in M'
-                /* T1 */w = fRightToLeftMatchPrime.get(x);
+                Node /* T1 */wNode = fLeftTree.getNode(w);
                 // Let v = p(w) in T1
-                Node /* T1 */v = (Node) w.getParent();
+                int /* T1 */v = fLeftTree.getParent(w);
 
                 // ii. If v(w) != v(x)
                 boolean equals = true;
-                if (isComment(l(w))) {
-                    TokenBasedCalculator tbc = new TokenBasedCalculator();
-                    double sim = tbc.calculateSimilarity(v(w), v(x));
-                    equals = sim == 1.0;
+                if (isComment(l(wNode))) {
+                    equals = isSameComment(w, x);
                 } else {
-                    equals = v(w).equals(v(x));
+                    equals = (fLeftTree.getValueHash(w) == fRightTree.getValueHash(x)) && v(wNode).equals(v(xNode));
                 }
                 // if (!v(w).equals(v(x))) {
+                ITreeEditOperation update = null;
                 if (!equals) {
                     // A. Append UPD(w, v(x)) to E
-                    ITreeEditOperation update = new UpdateOperation(w, x, v(x));
-                    fEditScript.add(update);
+                    update = new UpdateOperation(wNode, xNode, v(xNode));
                     // B. Apply UPD(w, v(x)) to T1
-                    update.apply();
+                    apply(update);
                 }
                 // iii. If (y, v) not in M'
-                if (!matchContains(v, y, fMatchPrime)) {
+                ITreeEditOperation move = null;
+                if ((v == FlatTree.NO_NODE) || (fRightPartner[v] != y)) {
                     // A. Let z be the partner of y in M'
-                    // Node z /*T1*/= (Node) fRightToLeftMatchPrime.get(y); already executed
+                    // Node z /*T1*/= fMatchPrime.getLeftPartner(y); already executed
                     // B. k <- FindPos(x)
                     int k = findPosition(x);
                     // C. Append MOV(w, z, k) to E
-                    ITreeEditOperation move = new MoveOperation(w, x, z, k);
-                    fEditScript.add(move);
+                    move = new MoveOperation(wNode, xNode, fLeftTree.getNode(v), fLeftTree.getNode(z), k);
                     // D. Apply MOV(w, z, k) to T1
-                    move.apply();
+                    fLeftTree.move(w, z, k);
+                    apply(move);
+                }
+                // UPD is passed after a MOV of w, so that w has its final parent
+                if (((update != null) && !handle(update)) || ((move != null) && !handle(move))) {
+                    return;
                 }
             }
             // (d) AlignChildren(w, x)
-            if (!w.isLeaf()) {
+            if (!fLeftTree.isLeaf(w)) {
                 alignChildren(w, x);
+                if (fStopped) {
+                    return;
+                }
             }
         }
 
         // 3. Do a post-order traversal of T1 (this is the delete phase)
-        LinkedList<ITreeEditOperation> dels = new LinkedList<ITreeEditOperation>();
-        for (Enumeration postOrder = left.postorderEnumeration(); postOrder.hasMoreElements();) {
+        if (fDeleteStack.length < fLeftTree.size()) {
+            fDeleteStack = new int[Math.max(fLeftTree.size(), fDeleteStack.length * 2)];
+            fDeleteNext = new int[fDeleteStack.length];
+        } else {
+            Arrays.fill(fDeleteNext, 0, fLeftTree.size(), 0);
+        }
+        int[] stack = fDeleteStack;
+        int[] next = fDeleteNext;
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[top - 1];
+            if (next[node] < fLeftTree.getChildCount(node)) {
+                stack[top++] = fLeftTree.getChild(node, next[node]++);
+                continue;
+            }
+            top--;
             // (a) Let w be the current node in the post-order traversal of T1
-            Node w = (Node) postOrder.nextElement();
             // (b) If w has no partner in M'
-            if (fLeftToRightMatchPrime.get(w) == null) {
+            if (fRightPartner[node] == FlatTree.NO_NODE) {
                 // Append DEL(w) to E
-                ITreeEditOperation delete = new DeleteOperation(w);
-                fEditScript.add(delete);
-                dels.add(delete);
+                ITreeEditOperation delete = new DeleteOperation(fLeftTree.getNode(node));
+                if (!handle(delete)) {
+                    return;
+                }
             }
         }
         // Apply DEL(w) to T1
@@ -194,47 +318,47 @@ public class TreeDifferencer {
         // 4. E is a minimum cost edit script, M' is a total matching, and T1 is isomorphic to T2
     }
 
-    private void alignChildren(Node w, Node x) {
-        if (w.isLeaf() || x.isLeaf()) {
+    private void alignChildren(int w, int x) {
+        if (fLeftTree.isLeaf(w) || fRightTree.isLeaf(x)) {
             return;
         }
 
         // 1. Mark all children of w and all children f x "out of order"
-        markChildrenOutOfOrder(w);
-        markChildrenOutOfOrder(x);
+        markChildrenOutOfOrder(w, x);
 
         // 2.
         // Let S1 be the sequence of children of w whose partners are children of x
-        List<Node> sOne = createChildrenSequence(w, x, fLeftToRightMatchPrime);
+        int sizeOne = createLeftChildrenSequence(w, x);
         // Let S2 be the sequence of children of x whose partners are children of w
-        List<Node> sTwo = createChildrenSequence(x, w, fRightToLeftMatchPrime);
+        int sizeTwo = createRightChildrenSequence(x, w);
 
         // 3. Define the function equal(a, b) to be true if and only if (a, b) in M'
         // 4. Let S <- LCS(S1, S2, equal)
-        HashSet<NodePair> s = longestCommonSubsequence(sOne, sTwo);
-
         // 5. For each (a, b) in S, mark nodes a and b "in order"
-        for (NodePair p : s) {
-            p.getLeft().enableInOrder();
-            p.getRight().enableInOrder();
-        }
+        markLongestCommonSubsequenceInOrder(sizeOne, sizeTwo);
 
         // 6. For each a in S1, b in S2 such that (a, b) in M but (a, b) not in S
-        for (Node a : sOne) {
-            if (!a.isInOrder()) { // a not in S
-                for (Node b : sTwo) {
-                    if (!b.isInOrder() && matchContains(a, b, fMatch)) { // b not in S and (a, b) in M
-                        // (a) k <- FindPos(b)
-                        int k = findPosition(b);
-                        // (b)
-                        // Append MOV(a, w, k) to E
-                        ITreeEditOperation move = new MoveOperation(a, b, w, k);
-                        fEditScript.add(move);
-                        // Apply MOV(a, w, k) to T1
-                        move.apply();
-                        // (c) Mark a and b "in order"
-                        a.enableInOrder();
-                        b.enableInOrder();
+        // the partner of a in M' is the only candidate b in S2
+        Node wNode = fLeftTree.getNode(w);
+        for (int i = 0; i < sizeOne; i++) {
+            int a = fLeftSequence[i];
+            if (!fLeftTree.isInOrder(a)) { // a not in S
+                int b = fRightPartner[a];
+                if (!fRightOrder.isInOrder(b) && isInMatch(a)) { // b not in S and (a, b) in M
+                    // (a) k <- FindPos(b)
+                    int k = findPosition(b);
+                    // (b)
+                    // Append MOV(a, w, k) to E
+                    ITreeEditOperation move =
+                            new MoveOperation(fLeftTree.getNode(a), fRightTree.getNode(b), wNode, wNode, k);
+                    // Apply MOV(a, w, k) to T1
+                    fLeftTree.move(a, w, k);
+                    apply(move);
+                    // (c) Mark a and b "in order"
+                    fLeftTree.setInOrder(a, true);
+                    fRightOrder.setInOrder(b, true);
+                    if (!handle(move)) {
+                        return;
                     }
                 }
             }
@@ -242,37 +366,72 @@ public class TreeDifferencer {
     }
 
     /**
-     * Sequence of children of node whose partners are children of x
+     * Sequence of children of w (T1) whose partners are children of x (T2)
      */
-    @SuppressWarnings("unchecked")
-    private List<Node> createChildrenSequence(Node node, Node x, HashMap<Node, Node> match) {
-        LinkedList<Node> result = new LinkedList<Node>();
-
-        for (Enumeration e = node.children(); e.hasMoreElements();) {
-            Node n = (Node) e.nextElement();
-            Node v = match.get(n);
-            if ((v != null) && (v.getParent() == x)) {
-                result.add(n);
+    private int createLeftChildrenSequence(int w, int x) {
+        int count = fLeftTree.getChildCount(w);
+        if (fLeftSequence.length < count) {
+            fLeftSequence = new int[Math.max(count, fLeftSequence.length * 2)];
+        }
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            int n = fLeftTree.getChild(w, i);
+            int v = fRightPartner[n];
+            if ((v != FlatTree.NO_NODE) && (fRightTree.getParent(v) == x)) {
+                fLeftSequence[size++] = n;
             }
         }
+        return size;
+    }
 
-        return result;
+    /**
+     * Sequence of children of x (T2) whose partners are children of w (T1)
+     */
+    private int createRightChildrenSequence(int x, int w) {
+        int size = 0;
+        for (int n = fRightTree.getFirstChild(x); n != FlatTree.NO_NODE; n = fRightTree.getNextSibling(n)) {
+            int v = fLeftPartner[n];
+            if ((v != FlatTree.NO_NODE) && (fLeftTree.getParent(v) == w)) {
+                if (fRightSequence.length == size) {
+                    int[] sequence = new int[Math.max(2, size * 2)];
+                    System.arraycopy(fRightSequence, 0, sequence, 0, size);
+                    fRightSequence = sequence;
+                }
+                fRightSequence[size++] = n;
+            }
+        }
+        return size;
     }
 
-    @SuppressWarnings("unchecked")
-    private void markChildrenOutOfOrder(Node node) {
-        for (Enumeration e = node.children(); e.hasMoreElements();) {
-            ((Node) e.nextElement()).enableOutOfOrder();
+    private void markChildrenOutOfOrder(int w, int x) {
+        for (int i = 0; i < fLeftTree.getChildCount(w); i++) {
+            fLeftTree.setInOrder(fLeftTree.getChild(w, i), false);
+        }
+        for (int c = fRightTree.getFirstChild(x); c != FlatTree.NO_NODE; c = fRightTree.getNextSibling(c)) {
+            fRightOrder.setInOrder(c, false);
         }
     }
 
-    private boolean matchContains(Node v, Node y, Set<NodePair> match) {
-        for (NodePair p : match) {
-            if (((p.getLeft() == v) && (p.getRight() == y)) || ((p.getLeft() == y) && (p.getRight() == v))) {
-                return true;
-            }
+    private boolean isSameComment(int /* T1 */w, int /* T2 */x) {
+        String left = v(fLeftTree.getNode(w));
+        String right = v(fRightTree.getNode(x));
+        if ((fLeftTree.getValueHash(w) == fRightTree.getValueHash(x)) && left.equals(right)) {
+            return true;
+        }
+        // the hashes only tell comments apart that lose their delimiters in the same way
+        if ((fLeftTree.getCommentHash(w) != fRightTree.getCommentHash(x))
+                && getCommentStart(left).equals(getCommentStart(right))) {
+            return false;
         }
-        return false;
+        // the left comment is not updated yet, so it still has the value it had in the flat tree
+        return fLeftComments.calculateSimilarity(w, fRightComments, x) == 1.0;
+    }
+
+    private String getCommentStart(String comment) {
+        if (comment.startsWith("//") || comment.startsWith("/*")) {
+            return comment.substring(0, 2);
+        }
+        return "";
     }
 
     private String v(Node node) {
@@ -294,16 +453,34 @@ public class TreeDifferencer {
         }
     }
 
-    private void addMatchToPrimes(Node x /* T1 */, Node w /* T2 */) {
-        fMatchPrime.add(new NodePair(w, x));
-        fLeftToRightMatchPrime.put(w, x);
-        fRightToLeftMatchPrime.put(x, w);
+    private void apply(ITreeEditOperation operation) {
+        if (fTransformationEnabled) {
+            operation.apply();
+        }
+    }
+
+    private boolean handle(ITreeEditOperation operation) {
+        fStopped = !fHandler.handle(operation);
+        return !fStopped;
     }
 
-    private int findPosition(Node node) {
+    private void addMatchToPrimes(int w /* T1 */, int x /* T2 */) {
+        fRightPartner[w] = x;
+        fLeftPartner[x] = w;
+    }
+
+    /**
+     * Returns whether the node of T1 is matched in M. Every node of the left tree that has a partner in M' has the same
+     * partner in M, only inserted nodes are matched in M' alone.
+     */
+    private boolean isInMatch(int w /* T1 */) {
+        return !fLeftTree.isInserted(w);
+    }
+
+    private int findPosition(int x) {
         // 1. Let y = p(x) in T2
         // [and let w be the partner of x (x in T1)] makes no sense
-        // Node y = (Node) node.getParent();
+        int y = fRightTree.getParent(x);
         /*
          * //2. if (node == y.getFirstChild() && node.isInOrder()) { return 0; }
          */
@@ -312,82 +489,127 @@ public class TreeDifferencer {
         // 3. Find v in T2 where v is the rightmost sibling of x that is to the
         // left of x and is marked "in order"
         // combining both steps
-        Node v = (Node) node.getPreviousSibling();
-        while ((v != null) && !v.isInOrder()) {
-            v = (Node) v.getPreviousSibling();
-        }
+        int rank = y != FlatTree.NO_NODE ? fRightOrder.countInOrderSiblingsBefore(x) : 0;
 
         // x is the leftmost child of y that is marked "in order"
-        if (v == null) {
+        if (rank == 0) {
             return 0;
         }
+        int v = fRightOrder.getInOrderChild(y, rank - 1);
 
         // 4. Let u be the partner of v in T1 (*)
-        Node u = fRightToLeftMatchPrime.get(v);
-        if (u == null) {
+        int u = fLeftPartner[v];
+        if (u == FlatTree.NO_NODE) {
             System.out.println("ERROR: partner expected (findPosition)");
         }
 
         // 5. Suppose u is the ith child of its parent
         // (counting from left to right) that is marked "in order"
         // return i+1
-        Node p = (Node) u.getParent();
-        int count = 0;
-        for (int i = 0; i < p.getIndex(u); i++) {
-            Node h = (Node) p.getChildAt(i);
-            if (h.isInOrder()) {
-                count++;
-            }
-        }
-
-        return count + 1;
+        return fLeftTree.countInOrderSiblingsBefore(u) + 1;
     }
 
-    private HashSet<NodePair> longestCommonSubsequence(List<Node> left, List<Node> right) {
-        int m = left.size();
-        int n = right.size();
-
-        int[][] c = new int[m + 1][n + 1];
-        int[][] b = new int[m + 1][n + 1];
+    /**
+     * Marks the pairs of the longest common subsequence of S1 and S2 "in order".
+     * 
+     * <p>
+     * Every node in S1 has exactly one partner in S2 and vice versa, so the LCS is the longest increasing subsequence
+     * of the positions in S2 of the partners of S1. It is computed by patience sorting in O(n log n) time and linear
+     * space. Of all such subsequences, the one is chosen that the backtracking of the classic dynamic programming
+     * table yields, i.e., walking S1 backwards, a node is dropped whenever dropping it does not shorten the LCS.
+     */
+    private void markLongestCommonSubsequenceInOrder(int sizeOne, int sizeTwo) {
+        int n = sizeOne;
+        if (n == 0) {
+            return;
+        }
+        ensureScratchCapacity(n);
 
-        for (int i = 0; i <= m; i++) {
-            c[i][0] = 0;
-            b[i][0] = 0;
+        int[] sOne = fLeftSequence;
+        int[] sTwo = fRightSequence;
+        for (int j = 0; j < sizeTwo; j++) {
+            fSequencePosition[sTwo[j]] = j;
         }
-        for (int i = 0; i <= n; i++) {
-            c[0][i] = 0;
-            b[0][i] = 0;
+        boolean ordered = true;
+        for (int i = 0; i < n; i++) {
+            int position = fSequencePosition[fRightPartner[sOne[i]]];
+            fPartnerPosition[i] = position;
+            ordered &= position == i;
         }
 
-        for (int i = 1; i <= m; i++) {
-            for (int j = 1; j <= n; j++) {
-                if (matchContains(left.get(i - 1), right.get(j - 1), fMatchPrime)) {
-                    c[i][j] = c[i - 1][j - 1] + 1;
-                    b[i][j] = DIAG;
-                } else if (c[i - 1][j] >= c[i][j - 1]) {
-                    c[i][j] = c[i - 1][j];
-                    b[i][j] = UP;
+        // children already in order: the LCS is the whole sequence
+        if (ordered) {
+            for (int i = 0; i < n; i++) {
+                markInOrder(sOne[i], sTwo[i]);
+            }
+            return;
+        }
+
+        // fTails[k] is the last node in S1 ending an increasing subsequence of length k + 1 with the smallest position.
+        // Pile k lists all nodes ending an increasing subsequence of length at most k + 1, by increasing index in S1
+        // and thus decreasing position.
+        int[] pi = fPartnerPosition;
+        int piles = 0;
+        for (int i = 0; i < n; i++) {
+            int low = 0;
+            int high = piles;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (pi[fTails[mid]] < pi[i]) {
+                    low = mid + 1;
                 } else {
-                    c[i][j] = c[i][j - 1];
-                    b[i][j] = LEFT;
+                    high = mid;
                 }
             }
+            fTails[low] = i;
+            fPileNext[i] = -1;
+            if (low == piles) {
+                fPileHead[piles++] = i;
+            } else {
+                fPileNext[fPileTail[low]] = i;
+            }
+            fPileTail[low] = i;
         }
-        HashSet<NodePair> result = new HashSet<NodePair>();
-        extractLCS(b, left, right, m, n, result);
-        return result;
-    }
 
-    private void extractLCS(int[][] b, List<Node> l, List<Node> r, int i, int j, HashSet<NodePair> lcs) {
-        if ((i != 0) && (j != 0)) {
-            if (b[i][j] == DIAG) {
-                lcs.add(new NodePair(l.get(i - 1), r.get(j - 1)));
-                extractLCS(b, l, r, i - 1, j - 1, lcs);
-            } else if (b[i][j] == UP) {
-                extractLCS(b, l, r, i - 1, j, lcs);
-            } else {
-                extractLCS(b, l, r, i, j - 1, lcs);
+        // backtrack from the first node of the last pile, always taking the first node of the next lower pile that
+        // precedes the current one in both sequences
+        int a = fPileHead[piles - 1];
+        markInOrder(sOne[a], sTwo[pi[a]]);
+        for (int k = piles - 2; k >= 0; k--) {
+            int b = fPileHead[k];
+            while ((b > a) || (pi[b] > pi[a])) {
+                b = fPileNext[b];
             }
+            a = b;
+            markInOrder(sOne[a], sTwo[pi[a]]);
+        }
+    }
+
+    private void releaseTrees() {
+        fHandler = null;
+        fLeftTree.clear();
+        fRightOrder.clear();
+        fRightTree = null;
+        fLeftComments = null;
+        fRightComments = null;
+    }
+
+    private void markInOrder(int a /* T1 */, int b /* T2 */) {
+        fLeftTree.setInOrder(a, true);
+        fRightOrder.setInOrder(b, true);
+    }
+
+    private void ensureScratchCapacity(int n) {
+        if (fSequencePosition.length < fRightTree.size()) {
+            fSequencePosition = new int[fRightTree.size()];
+        }
+        if (fPartnerPosition.length < n) {
+            int capacity = Math.max(n, fPartnerPosition.length * 2);
+            fPartnerPosition = new int[capacity];
+            fTails = new int[capacity];
+            fPileHead = new int[capacity];
+            fPileTail = new int[capacity];
+            fPileNext = new int[capacity];
         }
     }
 }
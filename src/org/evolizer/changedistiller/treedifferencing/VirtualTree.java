@@ -0,0 +1,302 @@
+/*
+ * Copyright 2009 University of Zurich, Switzerland
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.evolizer.changedistiller.treedifferencing;
+
+/**
+ * Copy of the structure of a {@link FlatTree} on which {@link TreeDifferencer} simulates the edit script, so that the
+ * {@link Node} tree it was taken from stays untouched.
+ * 
+ * <p>
+ * The nodes of the flat tree keep their ids; inserted nodes get the next free id. Insert and move behave like their
+ * {@link ITreeEditOperation} counterparts on the {@link Node} tree. Besides the structure, every node carries the "in
+ * order" mark of the differencing algorithm. The tables are kept when the virtual tree is cleared and reused for the
+ * next copy.
+ * 
+ * <p>
+ * For each parent, a Fenwick tree over the marks of its children answers how many children left of a node are "in
+ * order" and which child is the i-th "in order" one in <code>O(log n)</code>. It is rebuilt on first use after the
+ * children of the parent changed.
+ * 
+ * @author fluri
+ * @see TreeDifferencer
+ */
+final class VirtualTree {
+
+    private FlatTree fTree;
+    private Node[] fNodes;
+    private int[] fParent;
+    private int[][] fChildren;
+    private int[] fChildCount;
+    private int[] fPosition;
+    private boolean[] fInOrder;
+    private int[][] fInOrderCounts;
+    private int fSize;
+    private int fTreeSize;
+
+    /**
+     * Creates an empty virtual tree. It becomes a copy of a {@link FlatTree} with {@link #copy(FlatTree, int)}.
+     */
+    VirtualTree() {
+        ensureCapacity(0);
+    }
+
+    /**
+     * Makes this virtual tree a copy of the given {@link FlatTree}. The tables of a previous copy are reused if they
+     * are large enough.
+     * 
+     * @param tree
+     *            to copy
+     * @param capacity
+     *            maximum number of nodes, including the ones inserted later
+     */
+    void copy(FlatTree tree, int capacity) {
+        ensureCapacity(capacity);
+        fTree = tree;
+        fSize = tree.size();
+        fTreeSize = fSize;
+        for (int id = 0; id < fSize; id++) {
+            fNodes[id] = tree.getNode(id);
+            fParent[id] = tree.getParent(id);
+            fInOrder[id] = false;
+            fInOrderCounts[id] = null;
+            int count = 0;
+            for (int c = tree.getFirstChild(id); c != FlatTree.NO_NODE; c = tree.getNextSibling(c)) {
+                count++;
+            }
+            if ((fChildren[id] == null) || (fChildren[id].length < count)) {
+                fChildren[id] = new int[count];
+            }
+            fChildCount[id] = 0;
+            for (int c = tree.getFirstChild(id); c != FlatTree.NO_NODE; c = tree.getNextSibling(c)) {
+                fPosition[c] = fChildCount[id];
+                fChildren[id][fChildCount[id]++] = c;
+            }
+        }
+    }
+
+    /**
+     * Releases the nodes of the copied and the inserted nodes but keeps the tables for the next copy.
+     */
+    void clear() {
+        for (int id = 0; id < fSize; id++) {
+            fNodes[id] = null;
+        }
+        fTree = null;
+        fSize = 0;
+        fTreeSize = 0;
+    }
+
+    int size() {
+        return fSize;
+    }
+
+    Node getNode(int id) {
+        return id != FlatTree.NO_NODE ? fNodes[id] : null;
+    }
+
+    /**
+     * Returns whether the node was inserted rather than copied from the flat tree.
+     */
+    boolean isInserted(int id) {
+        return id >= fTreeSize;
+    }
+
+    /**
+     * Returns the value hash of a node copied from the flat tree, see {@link FlatTree#getValueHash(int)}.
+     */
+    long getValueHash(int id) {
+        return fTree.getValueHash(id);
+    }
+
+    /**
+     * Returns the comment hash of a node copied from the flat tree, see {@link FlatTree#getCommentHash(int)}.
+     */
+    long getCommentHash(int id) {
+        return fTree.getCommentHash(id);
+    }
+
+    int getParent(int id) {
+        return fParent[id];
+    }
+
+    int getChildCount(int id) {
+        return fChildCount[id];
+    }
+
+    int getChild(int id, int index) {
+        return fChildren[id][index];
+    }
+
+    boolean isLeaf(int id) {
+        return fChildCount[id] == 0;
+    }
+
+    boolean isInOrder(int id) {
+        return fInOrder[id];
+    }
+
+    void setInOrder(int id, boolean inOrder) {
+        if (fInOrder[id] == inOrder) {
+            return;
+        }
+        fInOrder[id] = inOrder;
+        int parent = fParent[id];
+        if ((parent != FlatTree.NO_NODE) && (fInOrderCounts[parent] != null)) {
+            int[] counts = fInOrderCounts[parent];
+            int delta = inOrder ? 1 : -1;
+            for (int i = fPosition[id] + 1; i < counts.length; i += i & -i) {
+                counts[i] += delta;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of siblings left of the given node that are marked "in order".
+     */
+    int countInOrderSiblingsBefore(int id) {
+        int[] counts = getInOrderCounts(fParent[id]);
+        int result = 0;
+        for (int i = fPosition[id]; i > 0; i -= i & -i) {
+            result += counts[i];
+        }
+        return result;
+    }
+
+    /**
+     * Returns the child of the given parent that is the <code>rank</code>-th one marked "in order", counting from
+     * <code>0</code>.
+     */
+    int getInOrderChild(int parent, int rank) {
+        int[] counts = getInOrderCounts(parent);
+        int position = 0;
+        int remaining = rank + 1;
+        for (int step = Integer.highestOneBit(counts.length); step > 0; step >>= 1) {
+            int next = position + step;
+            if ((next < counts.length) && (counts[next] < remaining)) {
+                position = next;
+                remaining -= counts[next];
+            }
+        }
+        return fChildren[parent][position];
+    }
+
+    /**
+     * Returns the position of the given child among the children of the given parent.
+     */
+    int getIndex(int parent, int child) {
+        return fParent[child] == parent ? fPosition[child] : -1;
+    }
+
+    /**
+     * Inserts a new node as the child at the given position of the given parent, like {@link Node#insert}. Without
+     * parent, the node becomes a root of its own.
+     * 
+     * @return the id of the inserted node
+     */
+    int insert(Node node, int parent, int index) {
+        int id = fSize++;
+        fNodes[id] = node;
+        fParent[id] = FlatTree.NO_NODE;
+        fInOrder[id] = false;
+        fInOrderCounts[id] = null;
+        if (fChildren[id] == null) {
+            fChildren[id] = new int[0];
+        }
+        fChildCount[id] = 0;
+        if (parent != FlatTree.NO_NODE) {
+            addChild(parent, id, index);
+        }
+        return id;
+    }
+
+    /**
+     * Moves the node to the given position of the given parent. As in the move operation, the node is appended if the
+     * parent has no more children than the position before the node is removed from its old parent.
+     */
+    void move(int id, int parent, int index) {
+        boolean append = fChildCount[parent] <= index;
+        removeChild(id);
+        addChild(parent, id, append ? fChildCount[parent] : index);
+    }
+
+    private void addChild(int parent, int child, int index) {
+        int count = fChildCount[parent];
+        if ((index < 0) || (index > count)) {
+            throw new ArrayIndexOutOfBoundsException(index + " > " + count);
+        }
+        int[] children = fChildren[parent];
+        if (count == children.length) {
+            children = new int[Math.max(2, count * 2)];
+            System.arraycopy(fChildren[parent], 0, children, 0, count);
+            fChildren[parent] = children;
+        }
+        System.arraycopy(children, index, children, index + 1, count - index);
+        children[index] = child;
+        fChildCount[parent]++;
+        fParent[child] = parent;
+        for (int i = index; i <= count; i++) {
+            fPosition[children[i]] = i;
+        }
+        fInOrderCounts[parent] = null;
+    }
+
+    private void removeChild(int child) {
+        int parent = fParent[child];
+        if (parent != FlatTree.NO_NODE) {
+            int index = getIndex(parent, child);
+            int[] children = fChildren[parent];
+            System.arraycopy(children, index + 1, children, index, fChildCount[parent] - index - 1);
+            fChildCount[parent]--;
+            fParent[child] = FlatTree.NO_NODE;
+            for (int i = index; i < fChildCount[parent]; i++) {
+                fPosition[children[i]] = i;
+            }
+            fInOrderCounts[parent] = null;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if ((fNodes != null) && (fNodes.length >= capacity)) {
+            return;
+        }
+        fNodes = new Node[capacity];
+        fParent = new int[capacity];
+        fChildren = new int[capacity][];
+        fChildCount = new int[capacity];
+        fPosition = new int[capacity];
+        fInOrder = new boolean[capacity];
+        fInOrderCounts = new int[capacity][];
+    }
+
+    private int[] getInOrderCounts(int parent) {
+        int[] counts = fInOrderCounts[parent];
+        if (counts == null) {
+            int count = fChildCount[parent];
+            counts = new int[count + 1];
+            for (int i = 1; i <= count; i++) {
+                if (fInOrder[fChildren[parent][i - 1]]) {
+                    counts[i]++;
+                }
+                int next = i + (i & -i);
+                if (next <= count) {
+                    counts[next] += counts[i];
+                }
+            }
+            fInOrderCounts[parent] = counts;
+        }
+        return counts;
+    }
+}
@@ -16,28 +16,54 @@
 package org.evolizer.changedistiller.treedifferencing.matching;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Enumeration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.evolizer.changedistiller.model.classifiers.EntityType;
+import org.evolizer.changedistiller.treedifferencing.FlatTree;
 import org.evolizer.changedistiller.treedifferencing.ITreeMatcher;
 import org.evolizer.changedistiller.treedifferencing.LeafPair;
 import org.evolizer.changedistiller.treedifferencing.Node;
 import org.evolizer.changedistiller.treedifferencing.NodePair;
+import org.evolizer.changedistiller.treedifferencing.StringProfiles;
+import org.evolizer.changedistiller.treedifferencing.matching.measure.ChawatheCalculator;
 import org.evolizer.changedistiller.treedifferencing.matching.measure.INodeSimilarityCalculator;
 import org.evolizer.changedistiller.treedifferencing.matching.measure.IStringSimilarityCalculator;
+import org.evolizer.changedistiller.treedifferencing.matching.measure.LevenshteinCalculator;
+import org.evolizer.changedistiller.treedifferencing.matching.measure.NGramsCalculator;
 import org.evolizer.changedistiller.treedifferencing.matching.measure.TokenBasedCalculator;
 
 /**
  * Implementation of the best matching tree matcher.
  * 
+ * <p>
+ * Leaves that are identical for the similarity calculator, i.e., have a similarity of <code>1.0</code>, are matched
+ * first without calculating any similarity, in the order the best matching would match them. Remaining leaves are only
+ * compared with leaves of the same label. If leaves are compared with the {@link NGramsCalculator}, an
+ * {@link NGramIndex} per label restricts the comparison to the leaves that share enough n-grams to reach the threshold.
+ * Nodes of large trees may be compared in parallel, see {@link #enableParallelScoring(int, int)}.
+ * 
  * @author fluri
  * 
  */
 public class BestLeafTreeMatcher implements ITreeMatcher {
 
+    private static final int NO_UNIQUE_SUBTREE = -1;
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 10;
+
     private IStringSimilarityCalculator fLeafGenericStringSimilarityCalculator;
     private double fLeafGenericStringSimilarityThreshold;
 
@@ -56,7 +82,19 @@ public class BestLeafTreeMatcher implements ITreeMatcher {
     private int fDynamicDepth;
     private double fDynamicThreshold;
 
+    private boolean fIdenticalSubtreeMatchingEnabled;
+
+    private boolean fParallelScoringEnabled;
+    private int fParallelTreeSize;
+    private int fParallelism;
+    private ExecutorService fExecutor;
+
     private Set<NodePair> fMatch;
+    private LeafPairQueue fLeafPairs = new LeafPairQueue();
+
+    // profiles of the node values for the node string similarity, while matching
+    private StringProfiles fLeftNodeValues;
+    private StringProfiles fRightNodeValues;
 
     /**
      * {@inheritDoc}
@@ -105,6 +143,52 @@ public class BestLeafTreeMatcher implements ITreeMatcher {
         fDynamicEnabled = false;
     }
 
+    /**
+     * Before leaves and inner nodes are matched by similarity, subtrees that occur exactly once in both trees and are
+     * isomorphic are matched node by node, top-down. Only the nodes outside these subtrees are left to the similarity
+     * based matching.
+     */
+    public void enableIdenticalSubtreeMatching() {
+        fIdenticalSubtreeMatchingEnabled = true;
+    }
+
+    /**
+     * All nodes are matched by similarity.
+     */
+    public void disableIdenticalSubtreeMatching() {
+        fIdenticalSubtreeMatchingEnabled = false;
+    }
+
+    /**
+     * Leaves and inner nodes of trees with at least the given number of nodes, counting both trees, are compared by
+     * several threads. The left nodes are partitioned among the threads, each of which scores its nodes into a buffer
+     * of its own. The buffers are merged in the order of the left nodes, so the matching is the same as if all nodes
+     * were compared by the calling thread. Inner nodes are only compared in parallel if the node similarity is the
+     * {@link ChawatheCalculator} on this matching, which counts matched leaves only; other node similarities may
+     * change as inner nodes are matched. The similarity calculators have to be safe to call concurrently.
+     * 
+     * @param treeSize
+     *            the number of nodes from which on the trees are compared in parallel
+     * @param parallelism
+     *            the number of threads
+     */
+    public void enableParallelScoring(int treeSize, int parallelism) {
+        if ((fExecutor != null) && (fParallelism != parallelism)) {
+            shutdownExecutor();
+        }
+        fParallelTreeSize = treeSize;
+        fParallelism = parallelism;
+        fParallelScoringEnabled = true;
+    }
+
+    /**
+     * All nodes are compared by the calling thread. The threads of the parallel scoring are stopped.
+     */
+    public void disableParallelScoring() {
+        fParallelScoringEnabled = false;
+        shutdownExecutor();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -115,82 +199,433 @@ public class BestLeafTreeMatcher implements ITreeMatcher {
     /**
      * {@inheritDoc}
      */
-    @SuppressWarnings("unchecked")
     public void match(Node left, Node right) {
-        List<LeafPair> matchedLeafs = new ArrayList<LeafPair>();
-        for (Enumeration<Node> leftNodes = left.postorderEnumeration(); leftNodes.hasMoreElements();) {
-            Node x = leftNodes.nextElement();
-            if (x.isLeaf()) {
-                for (Enumeration<Node> rightNodes = right.postorderEnumeration(); rightNodes.hasMoreElements();) {
-                    Node y = rightNodes.nextElement();
-                    if (y.isLeaf()) {
-                        if (x.getLabel() == y.getLabel()) {
-                            double similarity = 0;
-
-                            if ((x.getLabel() == EntityType.JAVADOC) || (x.getLabel() == EntityType.BLOCK_COMMENT)
-                                    || (x.getLabel() == EntityType.LINE_COMMENT)) {
-
-                                similarity =
-                                        fLeafCommentStringSimilarityCalculator.calculateSimilarity(x.getValue(), y
-                                                .getValue());
-
-                                // Important! Otherwhise nodes that match poorly will make it into final matching set,
-                                // if no better matches are found!
-                                if (similarity >= fLeafCommentStringSimilarityThreshold) {
-                                    matchedLeafs.add(new LeafPair(x, y, similarity));
-                                }
+        FlatTree leftTree = FlatTree.of(left);
+        FlatTree rightTree = FlatTree.of(right);
+        boolean[] leftMatched = new boolean[leftTree.size()];
+        boolean[] rightMatched = new boolean[rightTree.size()];
+        if (fIdenticalSubtreeMatchingEnabled) {
+            matchIdenticalSubtrees(leftTree, rightTree, leftMatched, rightMatched);
+        }
+
+        matchIdenticalLeaves(leftTree, rightTree, leftMatched, rightMatched);
+
+        // left leaves to score in post-order, the indexes are built before they are queried concurrently
+        List<Integer> leftLeaves = new ArrayList<Integer>();
+        Map<Integer, List<Integer>> rightLeaves = collectUnmatchedLeaves(rightTree, rightMatched);
+        Map<Integer, NGramIndex> rightIndexes = new HashMap<Integer, NGramIndex>();
+        for (int i = 0; i < leftTree.getLeafCount(0); i++) {
+            int xId = leftTree.getLeafInPostorder(i);
+            List<Integer> bucket = rightLeaves.get(leftTree.getLabelOrdinal(xId));
+            if (!leftMatched[xId] && (bucket != null)) {
+                leftLeaves.add(xId);
+                if (isIndexable() && !isComment(leftTree.getNode(xId))) {
+                    getIndex(rightIndexes, rightTree, bucket);
+                }
+            }
+        }
+
+        fLeafPairs.clear();
+        boolean parallel = isParallel(leftTree, rightTree);
+        if (parallel) {
+            List<LeafScoring> tasks = new ArrayList<LeafScoring>();
+            int chunk = getChunkSize(leftLeaves.size());
+            for (int from = 0; from < leftLeaves.size(); from += chunk) {
+                int to = Math.min(from + chunk, leftLeaves.size());
+                tasks.add(new LeafScoring(
+                        leftTree,
+                        rightTree,
+                        leftLeaves.subList(from, to),
+                        rightLeaves,
+                        rightIndexes,
+                        new LeafPairQueue()));
+            }
+            // merged in the order of the left leaves, as if they were scored sequentially
+            for (LeafPairQueue pairs : invokeAll(tasks)) {
+                fLeafPairs.addAll(pairs);
+            }
+        } else {
+            new LeafScoring(leftTree, rightTree, leftLeaves, rightLeaves, rightIndexes, fLeafPairs).call();
+        }
+
+        int leftCandidates = 0;
+        int rightCandidates = 0;
+        boolean[] leftCandidate = new boolean[leftTree.size()];
+        boolean[] rightCandidate = new boolean[rightTree.size()];
+        for (int pair = 0; pair < fLeafPairs.size(); pair++) {
+            if (!leftCandidate[fLeafPairs.getLeft(pair)]) {
+                leftCandidate[fLeafPairs.getLeft(pair)] = true;
+                leftCandidates++;
+            }
+            if (!rightCandidate[fLeafPairs.getRight(pair)]) {
+                rightCandidate[fLeafPairs.getRight(pair)] = true;
+                rightCandidates++;
+            }
+        }
+
+        // take the pairs in descending order of similarity until the leaves of one side are used up
+        while (!fLeafPairs.isEmpty() && (leftCandidates > 0) && (rightCandidates > 0)) {
+            int pair = fLeafPairs.poll();
+            int xId = fLeafPairs.getLeft(pair);
+            int yId = fLeafPairs.getRight(pair);
+            if (!(leftMatched[xId] || rightMatched[yId])) {
+                fMatch.add(new LeafPair(leftTree.getNode(xId), rightTree.getNode(yId), fLeafPairs.getSimilarity(pair)));
+                leftMatched[xId] = true;
+                rightMatched[yId] = true;
+                leftCandidates--;
+                rightCandidates--;
+            }
+        }
+
+        // bug found: x.isLeaf() && x.isRoot()
+        // if (!(x.isLeaf() || x.isMatched())) {
+        List<Integer> leftNodes = new ArrayList<Integer>();
+        for (int i = 0; i < countInnerNodes(leftTree); i++) {
+            int xId = getInnerNode(leftTree, i);
+            if (!leftMatched[xId]) {
+                leftNodes.add(xId);
+            }
+        }
+        fLeftNodeValues = leftTree.getProfiles(fNodeStringSimilarityCalculator);
+        fRightNodeValues = rightTree.getProfiles(fNodeStringSimilarityCalculator);
+        int[] innerNodes = collectInnerNodes(rightTree);
+        long[] leafPairs = collectLeafPairs(leftTree, rightTree);
+        InnerNodeCandidates candidates = new InnerNodeCandidates(leftTree, rightTree, innerNodes, leafPairs);
+        int[] firstCandidates = null;
+        // the first candidates stay valid only if matching inner nodes cannot make other nodes equal
+        if (parallel && (leafPairs != null)) {
+            firstCandidates = new int[leftNodes.size()];
+            List<InnerNodeScoring> tasks = new ArrayList<InnerNodeScoring>();
+            int chunk = getChunkSize(leftNodes.size());
+            for (int from = 0; from < leftNodes.size(); from += chunk) {
+                int to = Math.min(from + chunk, leftNodes.size());
+                tasks.add(new InnerNodeScoring(candidates, leftNodes, from, to, rightMatched, firstCandidates));
+            }
+            invokeAll(tasks);
+        }
+        for (int k = 0; k < leftNodes.size(); k++) {
+            int xId = leftNodes.get(k);
+            Node x = leftTree.getNode(xId);
+            // nodes before the first candidate are not equal to x or were already matched when it was computed
+            int start = (firstCandidates != null) ? firstCandidates[k] : 0;
+            for (int j : candidates.get(xId)) {
+                if (leftMatched[xId]) {
+                    break;
+                }
+                int yId = rightTree.getNodeInPostorder(j);
+                Node y = rightTree.getNode(yId);
+                // bug found: y.isLeaf() && y.isRoot()
+                // if (!(y.isLeaf() || y.isMatched()) && equal(x, y)) {
+                if ((j >= start) && !rightMatched[yId] && equal(x, xId, y, yId)) {
+                    fMatch.add(new NodePair(x, y));
+                    leftMatched[xId] = true;
+                    rightMatched[yId] = true;
+                }
+            }
+        }
+        fLeftNodeValues = null;
+        fRightNodeValues = null;
+    }
+
+    /**
+     * Post-order numbers of the inner nodes of the tree, a root that is a leaf included.
+     */
+    private int[] collectInnerNodes(FlatTree tree) {
+        int[] innerNodes = new int[countInnerNodes(tree)];
+        for (int i = 0; i < innerNodes.length; i++) {
+            innerNodes[i] = tree.getPostorderNumber(getInnerNode(tree, i));
+        }
+        return innerNodes;
+    }
+
+    /**
+     * Returns the number of nodes that are matched as inner nodes: the inner nodes or, if the tree is a single node,
+     * the root.
+     */
+    private int countInnerNodes(FlatTree tree) {
+        return tree.size() == 1 ? 1 : tree.size() - tree.getLeafCount(0);
+    }
+
+    /**
+     * Returns the node with the given number among the nodes matched as inner nodes, in post-order.
+     */
+    private int getInnerNode(FlatTree tree, int number) {
+        return tree.size() == 1 ? 0 : tree.getInnerNodeInPostorder(number);
+    }
+
+    /**
+     * The pairs of leaves in the matching as <code>(left id << 32) | right id</code>, sorted. <code>null</code> if a
+     * right node may be equal to a left node without a leaf of it being matched with a leaf of the right node, which is
+     * the case unless the node similarity is the {@link ChawatheCalculator} on this matching and requires a similarity
+     * greater than <code>0</code>.
+     */
+    private long[] collectLeafPairs(FlatTree leftTree, FlatTree rightTree) {
+        boolean chawathe =
+                (fNodeSimilarityCalculator instanceof ChawatheCalculator)
+                        && (((ChawatheCalculator) fNodeSimilarityCalculator).getLeafMatchSet() == fMatch);
+        if (!chawathe || (fNodeSimilarityThreshold <= 0) || (fDynamicEnabled && (fDynamicThreshold <= 0))) {
+            return null;
+        }
+        long[] pairs = new long[fMatch.size()];
+        int size = 0;
+        for (NodePair pair : fMatch) {
+            int xId = leftTree.indexOf(pair.getLeft());
+            int yId = rightTree.indexOf(pair.getRight());
+            if ((xId != FlatTree.NO_NODE) && (yId != FlatTree.NO_NODE) && leftTree.isLeaf(xId)) {
+                pairs[size++] = ((long) xId << 32) | yId;
+            }
+        }
+        Arrays.sort(pairs, 0, size);
+        return Arrays.copyOf(pairs, size);
+    }
+
+    private boolean isParallel(FlatTree leftTree, FlatTree rightTree) {
+        return fParallelScoringEnabled && (fParallelism > 1)
+                && (leftTree.size() + rightTree.size() >= fParallelTreeSize);
+    }
+
+    /**
+     * A few chunks per thread, so that threads that score cheap nodes take over more chunks.
+     */
+    private int getChunkSize(int nodes) {
+        return Math.max(1, (nodes + (fParallelism * 4) - 1) / (fParallelism * 4));
+    }
 
-                            } else { // ...other statements.
-                                similarity =
-                                        fLeafGenericStringSimilarityCalculator.calculateSimilarity(x.getValue(), y
-                                                .getValue());
+    /**
+     * Runs the tasks in parallel and returns their results in the order of the tasks.
+     */
+    private <T> List<T> invokeAll(List<? extends Callable<T>> tasks) {
+        if (fExecutor == null) {
+            ThreadPoolExecutor executor =
+                    new ThreadPoolExecutor(
+                            fParallelism,
+                            fParallelism,
+                            THREAD_KEEP_ALIVE_SECONDS,
+                            TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(),
+                            new ThreadFactory() {
 
-                                // Important! Otherwhise nodes that match poorly will make it into final matching set,
-                                // if no better matches are found!
-                                if (similarity >= fLeafGenericStringSimilarityThreshold) {
-                                    matchedLeafs.add(new LeafPair(x, y, similarity));
+                                public Thread newThread(Runnable runnable) {
+                                    Thread thread = new Thread(runnable, "BestLeafTreeMatcher");
+                                    thread.setDaemon(true);
+                                    return thread;
                                 }
-                            }
-                        }
+                            });
+            // idle threads end, so that matchers no longer in use do not keep them
+            executor.allowCoreThreadTimeOut(true);
+            fExecutor = executor;
+        }
+        List<T> results = new ArrayList<T>(tasks.size());
+        try {
+            for (Future<T> future : fExecutor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while matching.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        return results;
+    }
+
+    private void shutdownExecutor() {
+        if (fExecutor != null) {
+            fExecutor.shutdown();
+            fExecutor = null;
+        }
+    }
+
+    private boolean isInnerNode(FlatTree tree, int id) {
+        return !tree.isLeaf(id) || tree.getNode(id).isRoot();
+    }
+
+    /**
+     * Matches leaves with a similarity of <code>1.0</code>. The best matching takes these pairs first, ordered by the
+     * post-order of the left and then of the right leaves. So among leaves with the same key, the i-th left leaf is
+     * matched with the i-th right leaf.
+     */
+    private void matchIdenticalLeaves(
+            FlatTree leftTree,
+            FlatTree rightTree,
+            boolean[] leftMatched,
+            boolean[] rightMatched) {
+        Map<List<Object>, LinkedList<Integer>> rightLeaves = new HashMap<List<Object>, LinkedList<Integer>>();
+        for (int i = 0; i < rightTree.getLeafCount(0); i++) {
+            int yId = rightTree.getLeafInPostorder(i);
+            if (!rightMatched[yId]) {
+                List<Object> key = getIdenticalLeafKey(rightTree, yId);
+                if (key != null) {
+                    LinkedList<Integer> leaves = rightLeaves.get(key);
+                    if (leaves == null) {
+                        leaves = new LinkedList<Integer>();
+                        rightLeaves.put(key, leaves);
                     }
+                    leaves.add(yId);
                 }
             }
         }
+        if (rightLeaves.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < leftTree.getLeafCount(0); i++) {
+            int xId = leftTree.getLeafInPostorder(i);
+            if (!leftMatched[xId]) {
+                List<Object> key = getIdenticalLeafKey(leftTree, xId);
+                LinkedList<Integer> leaves = (key != null) ? rightLeaves.get(key) : null;
+                if ((leaves != null) && !leaves.isEmpty()) {
+                    int yId = leaves.removeFirst();
+                    fMatch.add(new LeafPair(leftTree.getNode(xId), rightTree.getNode(yId), 1.0));
+                    leftMatched[xId] = true;
+                    rightMatched[yId] = true;
+                }
+            }
+        }
+    }
 
-        // sort matching set according to similarity in descending order
-        Collections.sort(matchedLeafs);
+    /**
+     * Returns the key that leaves with a similarity of <code>1.0</code> have in common, <code>null</code> if the
+     * similarity calculator of the leaf is not known to have such a key.
+     */
+    private List<Object> getIdenticalLeafKey(FlatTree tree, int id) {
+        String value = tree.getValue(id);
+        Object key = null;
+        if (value == null) {
+            return null;
+        } else if (isComment(tree.getNode(id))) {
+            key = getIdenticalStringKey(fLeafCommentStringSimilarityCalculator, value);
+        } else if (fLeafGenericStringSimilarityThreshold <= 1.0) {
+            key = getIdenticalStringKey(fLeafGenericStringSimilarityCalculator, value);
+        }
+        return (key != null) ? Arrays.asList(tree.getLabelOrdinal(id), key) : null;
+    }
 
-        for (LeafPair pair : matchedLeafs) {
-            Node x = pair.getLeft();
-            Node y = pair.getRight();
-            if (!(x.isMatched() || y.isMatched())) {
-                fMatch.add(pair);
-                x.enableMatched();
-                y.enableMatched();
+    private Object getIdenticalStringKey(IStringSimilarityCalculator calculator, String value) {
+        if (calculator instanceof TokenBasedCalculator) {
+            // 1.0 if the tokens are equal regardless of their order
+            String[] tokens = ((TokenBasedCalculator) calculator).tokenize(value);
+            Arrays.sort(tokens);
+            List<String> key = new ArrayList<String>(tokens.length + 1);
+            key.add(getCommentStart(value));
+            key.addAll(Arrays.asList(tokens));
+            return key;
+        } else if (calculator instanceof NGramsCalculator) {
+            // 1.0 if the sets of n-grams are equal or, without n-grams, the strings are equal
+            int n = ((NGramsCalculator) calculator).getN();
+            Set<String> ngrams = new HashSet<String>();
+            for (int i = 0; i < value.length() - (n - 1); i++) {
+                ngrams.add(value.substring(i, i + n));
             }
+            return ngrams.isEmpty() ? value : ngrams;
+        } else if (calculator instanceof LevenshteinCalculator) {
+            return value;
         }
+        return null;
+    }
 
-        for (Enumeration<Node> leftNodes = left.postorderEnumeration(); leftNodes.hasMoreElements();) {
-            Node x = leftNodes.nextElement();
-            // bug found: x.isLeaf() && x.isRoot()
-            // if (!(x.isLeaf() || x.isMatched())) {
-            if (!x.isMatched() && (!x.isLeaf() || x.isRoot())) {
-                for (Enumeration<Node> rightNodes = right.postorderEnumeration(); rightNodes.hasMoreElements()
-                        && !x.isMatched();) {
-                    Node y = rightNodes.nextElement();
-                    // bug found: y.isLeaf() && y.isRoot()
-                    // if (!(y.isLeaf() || y.isMatched()) && equal(x, y)) {
-                    if ((!y.isMatched() && (!y.isLeaf() || y.isRoot())) && equal(x, y)) {
-                        fMatch.add(new NodePair(x, y));
-                        x.enableMatched();
-                        y.enableMatched();
-                    }
+    private String getCommentStart(String comment) {
+        if (comment.startsWith("//") || comment.startsWith("/*")) {
+            return comment.substring(0, 2);
+        }
+        return "";
+    }
+
+    private boolean isComment(Node node) {
+        return (node.getLabel() == EntityType.JAVADOC) || (node.getLabel() == EntityType.BLOCK_COMMENT)
+                || (node.getLabel() == EntityType.LINE_COMMENT);
+    }
+
+    /**
+     * Unmatched leaves of the tree by label ordinal, each in post-order.
+     */
+    private Map<Integer, List<Integer>> collectUnmatchedLeaves(FlatTree tree, boolean[] matched) {
+        Map<Integer, List<Integer>> leaves = new HashMap<Integer, List<Integer>>();
+        for (int i = 0; i < tree.getLeafCount(0); i++) {
+            int id = tree.getLeafInPostorder(i);
+            if (!matched[id]) {
+                List<Integer> bucket = leaves.get(tree.getLabelOrdinal(id));
+                if (bucket == null) {
+                    bucket = new ArrayList<Integer>();
+                    leaves.put(tree.getLabelOrdinal(id), bucket);
+                }
+                bucket.add(id);
+            }
+        }
+        return leaves;
+    }
+
+    private boolean isIndexable() {
+        return (fLeafGenericStringSimilarityCalculator instanceof NGramsCalculator)
+                && (fLeafGenericStringSimilarityThreshold > 0);
+    }
+
+    private NGramIndex getIndex(Map<Integer, NGramIndex> indexes, FlatTree tree, List<Integer> bucket) {
+        int label = tree.getLabelOrdinal(bucket.get(0));
+        NGramIndex index = indexes.get(label);
+        if (index == null) {
+            index =
+                    new NGramIndex(
+                            ((NGramsCalculator) fLeafGenericStringSimilarityCalculator).getN(),
+                            fLeafGenericStringSimilarityThreshold);
+            for (int id : bucket) {
+                index.add(id, tree.getValue(id));
+            }
+            indexes.put(label, index);
+        }
+        return index;
+    }
+
+    private void matchIdenticalSubtrees(
+            FlatTree leftTree,
+            FlatTree rightTree,
+            boolean[] leftMatched,
+            boolean[] rightMatched) {
+        // subtree hash -> id of the only subtree with that hash
+        Map<Long, Integer> leftSubtrees = indexSubtrees(leftTree);
+        Map<Long, Integer> rightSubtrees = indexSubtrees(rightTree);
+
+        // top-down: once a subtree is matched, its descendants are skipped
+        int xId = 0;
+        while (xId < leftTree.size()) {
+            Long hash = leftTree.getSubtreeHash(xId);
+            int yId = uniqueSubtree(rightSubtrees, hash);
+            if ((yId != NO_UNIQUE_SUBTREE) && (uniqueSubtree(leftSubtrees, hash) == xId) && !rightMatched[yId]
+                    && leftTree.isIsomorphic(xId, rightTree, yId)) {
+                int size = leftTree.getSubtreeSize(xId);
+                for (int i = 0; i < size; i++) {
+                    fMatch.add(new NodePair(leftTree.getNode(xId + i), rightTree.getNode(yId + i)));
+                    leftMatched[xId + i] = true;
+                    rightMatched[yId + i] = true;
                 }
+                xId += size;
+            } else {
+                xId++;
             }
         }
     }
 
-    private boolean equal(Node x, Node y) {
+    private Map<Long, Integer> indexSubtrees(FlatTree tree) {
+        Map<Long, Integer> subtrees = new HashMap<Long, Integer>(tree.size() * 2);
+        for (int id = 0; id < tree.size(); id++) {
+            Integer previous = subtrees.put(tree.getSubtreeHash(id), id);
+            if (previous != null) {
+                subtrees.put(tree.getSubtreeHash(id), NO_UNIQUE_SUBTREE);
+            }
+        }
+        return subtrees;
+    }
+
+    private int uniqueSubtree(Map<Long, Integer> subtrees, Long hash) {
+        Integer id = subtrees.get(hash);
+        return id != null ? id : NO_UNIQUE_SUBTREE;
+    }
+
+    private boolean equal(Node x, int xId, Node y, int yId) {
         // inner nodes
         if ((!x.isLeaf() && !y.isLeaf()) || (x.isRoot() && y.isRoot())) {
             if (x.getLabel() == y.getLabel()) {
@@ -203,7 +638,7 @@ public class BestLeafTreeMatcher implements ITreeMatcher {
                         t = fDynamicThreshold;
                     }
                     double simNode = fNodeSimilarityCalculator.calculateSimilarity(x, y);
-                    double simString = fNodeStringSimilarityCalculator.calculateSimilarity(x.getValue(), y.getValue());
+                    double simString = fLeftNodeValues.calculateSimilarity(xId, fRightNodeValues, yId);
                     if ((simString < fNodeStringSimilarityThreshold) && (simNode >= fWeightingThreshold)) {
                         return true;
                     } else {
@@ -214,4 +649,242 @@ public class BestLeafTreeMatcher implements ITreeMatcher {
         }
         return false;
     }
+
+    /**
+     * Scores pairs of a sequence of left leaves with the right leaves of the same label into a queue.
+     */
+    private final class LeafScoring implements Callable<LeafPairQueue> {
+
+        private FlatTree fLeftTree;
+        private FlatTree fRightTree;
+        private List<Integer> fLeftLeaves;
+        private Map<Integer, List<Integer>> fRightLeaves;
+        private Map<Integer, NGramIndex> fRightIndexes;
+        private LeafPairQueue fPairs;
+        private NGramIndex.Scratch fScratch = new NGramIndex.Scratch();
+
+        // profiles of the candidates of a left leaf and their similarities with it
+        private Object[] fCandidateProfiles = new Object[16];
+        private double[] fSimilarities = new double[16];
+
+        LeafScoring(
+                FlatTree leftTree,
+                FlatTree rightTree,
+                List<Integer> leftLeaves,
+                Map<Integer, List<Integer>> rightLeaves,
+                Map<Integer, NGramIndex> rightIndexes,
+                LeafPairQueue pairs) {
+            fLeftTree = leftTree;
+            fRightTree = rightTree;
+            fLeftLeaves = leftLeaves;
+            fRightLeaves = rightLeaves;
+            fRightIndexes = rightIndexes;
+            fPairs = pairs;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public LeafPairQueue call() {
+            StringProfiles leftComments = fLeftTree.getProfiles(fLeafCommentStringSimilarityCalculator);
+            StringProfiles rightComments = fRightTree.getProfiles(fLeafCommentStringSimilarityCalculator);
+            StringProfiles leftValues = fLeftTree.getProfiles(fLeafGenericStringSimilarityCalculator);
+            StringProfiles rightValues = fRightTree.getProfiles(fLeafGenericStringSimilarityCalculator);
+            for (int xId : fLeftLeaves) {
+                List<Integer> bucket = fRightLeaves.get(fLeftTree.getLabelOrdinal(xId));
+                if (isComment(fLeftTree.getNode(xId))) {
+                    score(
+                            xId,
+                            bucket,
+                            fLeafCommentStringSimilarityCalculator,
+                            leftComments,
+                            rightComments,
+                            fLeafCommentStringSimilarityThreshold);
+                } else { // ...other statements.
+                    List<Integer> candidates = bucket;
+                    if (isIndexable()) {
+                        NGramIndex index = fRightIndexes.get(fLeftTree.getLabelOrdinal(xId));
+                        candidates = index.getCandidates(fLeftTree.getValue(xId), fScratch);
+                    }
+                    score(
+                            xId,
+                            candidates,
+                            fLeafGenericStringSimilarityCalculator,
+                            leftValues,
+                            rightValues,
+                            fLeafGenericStringSimilarityThreshold);
+                }
+            }
+            return fPairs;
+        }
+
+        /**
+         * Scores the left leaf against all its candidates in one batch of the calculator.
+         */
+        private void score(
+                int xId,
+                List<Integer> candidates,
+                IStringSimilarityCalculator calculator,
+                StringProfiles leftProfiles,
+                StringProfiles rightProfiles,
+                double threshold) {
+            int count = candidates.size();
+            if (fCandidateProfiles.length < count) {
+                fCandidateProfiles = new Object[Math.max(count, fCandidateProfiles.length * 2)];
+                fSimilarities = new double[fCandidateProfiles.length];
+            }
+            for (int i = 0; i < count; i++) {
+                fCandidateProfiles[i] = rightProfiles.getProfile(candidates.get(i));
+            }
+            calculator.calculateProfileSimilarities(
+                    leftProfiles.getProfile(xId),
+                    fCandidateProfiles,
+                    count,
+                    threshold,
+                    fSimilarities);
+            for (int i = 0; i < count; i++) {
+                // Important! Otherwhise nodes that match poorly will make it into final matching set,
+                // if no better matches are found!
+                if (fSimilarities[i] >= threshold) {
+                    fPairs.add(xId, candidates.get(i), fSimilarities[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Right inner nodes that may be equal to a left inner node, in post-order. With the Chawathe similarity, only the
+     * ancestors of the partners of the leaves of the left node have a similarity greater than <code>0</code>, so the
+     * candidates are collected by walking up from these partners. Otherwise, and for left nodes that are equal
+     * regardless of their similarity, all right inner nodes are candidates.
+     */
+    private final class InnerNodeCandidates {
+
+        private FlatTree fLeftTree;
+        private FlatTree fRightTree;
+        private int[] fInnerNodes;
+        private long[] fLeafPairs;
+
+        // scratch space of get, one per thread
+        private int[] fVisited;
+        private int fVisit;
+        private int[] fCandidates;
+
+        InnerNodeCandidates(FlatTree leftTree, FlatTree rightTree, int[] innerNodes, long[] leafPairs) {
+            fLeftTree = leftTree;
+            fRightTree = rightTree;
+            fInnerNodes = innerNodes;
+            fLeafPairs = leafPairs;
+            fVisited = new int[rightTree.size()];
+            fCandidates = new int[innerNodes.length];
+        }
+
+        /**
+         * Creates candidates sharing the trees and pairs of the given ones, with scratch space of their own.
+         */
+        InnerNodeCandidates(InnerNodeCandidates other) {
+            this(other.fLeftTree, other.fRightTree, other.fInnerNodes, other.fLeafPairs);
+        }
+
+        FlatTree getLeftTree() {
+            return fLeftTree;
+        }
+
+        FlatTree getRightTree() {
+            return fRightTree;
+        }
+
+        /**
+         * Returns the post-order numbers of the right inner nodes that may be equal to the given left node, in
+         * ascending order.
+         */
+        int[] get(int xId) {
+            if ((fLeafPairs == null) || (fLeftTree.getLabelOrdinal(xId) == EntityType.ROOT_NODE.ordinal())) {
+                return fInnerNodes;
+            }
+            fVisit++;
+            int size = 0;
+            int end = xId + fLeftTree.getSubtreeSize(xId);
+            for (int i = lowerBound(fLeafPairs, xId); (i < fLeafPairs.length) && ((fLeafPairs[i] >>> 32) < end); i++) {
+                // ancestors of a visited node were visited too
+                int yId = (int) fLeafPairs[i];
+                while ((yId != FlatTree.NO_NODE) && (fVisited[yId] != fVisit)) {
+                    fVisited[yId] = fVisit;
+                    if (isInnerNode(fRightTree, yId)) {
+                        fCandidates[size++] = fRightTree.getPostorderNumber(yId);
+                    }
+                    yId = fRightTree.getParent(yId);
+                }
+            }
+            int[] result = Arrays.copyOf(fCandidates, size);
+            Arrays.sort(result);
+            return result;
+        }
+
+        private int lowerBound(long[] pairs, int xId) {
+            long key = (long) xId << 32;
+            int low = 0;
+            int high = pairs.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (pairs[mid] < key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Finds, for a range of left inner nodes, the first candidate in post-order that is unmatched before the inner
+     * nodes are matched and equal to the left one. Right nodes that get matched to an earlier left node are skipped
+     * afterwards, when the nodes are actually matched.
+     */
+    private final class InnerNodeScoring implements Callable<Void> {
+
+        private InnerNodeCandidates fCandidates;
+        private List<Integer> fLeftNodes;
+        private int fFrom;
+        private int fTo;
+        private boolean[] fRightMatched;
+        private int[] fFirstCandidates;
+
+        InnerNodeScoring(
+                InnerNodeCandidates candidates,
+                List<Integer> leftNodes,
+                int from,
+                int to,
+                boolean[] rightMatched,
+                int[] firstCandidates) {
+            fCandidates = new InnerNodeCandidates(candidates);
+            fLeftNodes = leftNodes;
+            fFrom = from;
+            fTo = to;
+            fRightMatched = rightMatched;
+            fFirstCandidates = firstCandidates;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Void call() {
+            FlatTree leftTree = fCandidates.getLeftTree();
+            FlatTree rightTree = fCandidates.getRightTree();
+            for (int k = fFrom; k < fTo; k++) {
+                int xId = fLeftNodes.get(k);
+                Node x = leftTree.getNode(xId);
+                fFirstCandidates[k] = rightTree.size();
+                for (int j : fCandidates.get(xId)) {
+                    int yId = rightTree.getNodeInPostorder(j);
+                    if (!fRightMatched[yId] && equal(x, xId, rightTree.getNode(yId), yId)) {
+                        fFirstCandidates[k] = j;
+                        break;
+                    }
+                }
+            }
+            return null;
+        }
+    }
 }
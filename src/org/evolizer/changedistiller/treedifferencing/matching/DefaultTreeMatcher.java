@@ -15,19 +15,29 @@
  */
 package org.evolizer.changedistiller.treedifferencing.matching;
 
-import java.util.Enumeration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.evolizer.changedistiller.model.classifiers.EntityType;
+import org.evolizer.changedistiller.treedifferencing.FlatTree;
 import org.evolizer.changedistiller.treedifferencing.ITreeMatcher;
 import org.evolizer.changedistiller.treedifferencing.Node;
 import org.evolizer.changedistiller.treedifferencing.NodePair;
+import org.evolizer.changedistiller.treedifferencing.StringProfiles;
 import org.evolizer.changedistiller.treedifferencing.matching.measure.INodeSimilarityCalculator;
 import org.evolizer.changedistiller.treedifferencing.matching.measure.IStringSimilarityCalculator;
 
 /**
  * Implementation of the default Chawathe tree matcher.
  * 
+ * <p>
+ * Each node is matched with the first unmatched node in post-order it is equal to. A leaf other than the root can only
+ * be equal to a leaf with the same label, so leaves only look at these. Leaves with identical values are equal without
+ * calculating their similarity.
+ * 
  * @author fluri
  * 
  */
@@ -47,6 +57,12 @@ public class DefaultTreeMatcher implements ITreeMatcher {
 
     private Set<NodePair> fMatch;
 
+    // profiles of the leaf and node values, while matching
+    private StringProfiles fLeftLeafValues;
+    private StringProfiles fRightLeafValues;
+    private StringProfiles fLeftNodeValues;
+    private StringProfiles fRightNodeValues;
+
     /**
      * {@inheritDoc}
      */
@@ -104,40 +120,91 @@ public class DefaultTreeMatcher implements ITreeMatcher {
     /**
      * {@inheritDoc}
      */
-    @SuppressWarnings("unchecked")
     public void match(Node left, Node right) {
         // 1. M <- {} : in init
 
-        // 2. Mark all nodes of T1 and T2 "unmatched" this is done during build of the trees
+        FlatTree leftTree = FlatTree.of(left);
+        FlatTree rightTree = FlatTree.of(right);
+        fLeftLeafValues = leftTree.getProfiles(fLeafStringSimilarityCalculator);
+        fRightLeafValues = rightTree.getProfiles(fLeafStringSimilarityCalculator);
+        fLeftNodeValues = leftTree.getProfiles(fNodeStringSimilarityCalculator);
+        fRightNodeValues = rightTree.getProfiles(fNodeStringSimilarityCalculator);
+
+        // 2. Mark all nodes of T1 and T2 "unmatched"
+        boolean[] leftMatched = new boolean[leftTree.size()];
+        boolean[] rightMatched = new boolean[rightTree.size()];
+
+        // leaves of T2 by label, in post-order
+        Map<Integer, List<Integer>> rightLeaves = new HashMap<Integer, List<Integer>>();
+        for (int j = 0; j < rightTree.getLeafCount(0); j++) {
+            int yId = rightTree.getLeafInPostorder(j);
+            List<Integer> leaves = rightLeaves.get(rightTree.getLabelOrdinal(yId));
+            if (leaves == null) {
+                leaves = new ArrayList<Integer>();
+                rightLeaves.put(rightTree.getLabelOrdinal(yId), leaves);
+            }
+            leaves.add(yId);
+        }
 
         // 3. Proceed bottom-up on tree T1
-        for (Enumeration enumerate = left.postorderEnumeration(); enumerate.hasMoreElements();) {
-            Node x = (Node) enumerate.nextElement();
+        for (int i = 0; i < leftTree.size(); i++) {
+            int xId = leftTree.getNodeInPostorder(i);
+            Node x = leftTree.getNode(xId);
             // For each unmatched node x in T1
-            if (!x.isMatched()) {
-                for (Enumeration e = right.postorderEnumeration(); e.hasMoreElements() && !x.isMatched();) {
-                    Node y = (Node) e.nextElement();
+            if (!leftMatched[xId] && leftTree.isLeaf(xId) && !x.isRoot()) {
+                List<Integer> leaves = rightLeaves.get(leftTree.getLabelOrdinal(xId));
+                for (int j = 0; (leaves != null) && (j < leaves.size()) && !leftMatched[xId]; j++) {
+                    int yId = leaves.get(j);
+                    // if there is an unmatched leaf y in T2
+                    if (!rightMatched[yId] && equalLeaves(leftTree, xId, rightTree, yId)) {
+                        fMatch.add(new NodePair(x, rightTree.getNode(yId)));
+                        leftMatched[xId] = true;
+                        rightMatched[yId] = true;
+                    }
+                }
+            } else if (!leftMatched[xId]) {
+                // an inner node can only be equal to an inner node or, if both are roots, to a root that is a leaf
+                boolean innerNodes = !leftTree.isLeaf(xId) && (rightTree.size() > 1);
+                int count = innerNodes ? rightTree.size() - rightTree.getLeafCount(0) : rightTree.size();
+                for (int j = 0; (j < count) && !leftMatched[xId]; j++) {
+                    int yId = innerNodes ? rightTree.getInnerNodeInPostorder(j) : rightTree.getNodeInPostorder(j);
+                    Node y = rightTree.getNode(yId);
                     // if there is an unmatched node y in T2
-                    if (!x.isMatched() && !y.isMatched()) {
-                        if (equal(x, y)) {
+                    if (!leftMatched[xId] && !rightMatched[yId]) {
+                        if (equal(x, xId, y, yId)) {
                             // i. Add (x, y) to M
                             fMatch.add(new NodePair(x, y));
 
                             // ii. Mark x and y "matched"
-                            x.enableMatched();
-                            y.enableMatched();
+                            leftMatched[xId] = true;
+                            rightMatched[yId] = true;
                         }
                     }
                 }
             }
         }
+        fLeftLeafValues = null;
+        fRightLeafValues = null;
+        fLeftNodeValues = null;
+        fRightNodeValues = null;
+    }
+
+    private boolean equalLeaves(FlatTree leftTree, int xId, FlatTree rightTree, int yId) {
+        String xValue = leftTree.getValue(xId);
+        String yValue = rightTree.getValue(yId);
+        if ((leftTree.getValueHash(xId) == rightTree.getValueHash(yId)) && (xValue != null) && xValue.equals(yValue)
+                && (fLeafStringSimilarityThreshold <= 1.0)) {
+            return true;
+        }
+        return fLeftLeafValues.calculateSimilarity(xId, fRightLeafValues, yId) >= fLeafStringSimilarityThreshold;
     }
 
-    private boolean equal(Node x, Node y) {
+    private boolean equal(Node x, int xId, Node y, int yId) {
         // leaves
         if (x.isLeaf() && y.isLeaf()) {
             if (x.getLabel() == y.getLabel()) {
-                return fLeafStringSimilarityCalculator.calculateSimilarity(x.getValue(), y.getValue()) >= fLeafStringSimilarityThreshold;
+                return fLeftLeafValues.calculateSimilarity(xId, fRightLeafValues, yId)
+                        >= fLeafStringSimilarityThreshold;
             }
 
             // inner nodes
@@ -152,7 +219,7 @@ public class DefaultTreeMatcher implements ITreeMatcher {
                         t = fDynamicThreshold;
                     }
                     double simNode = fNodeSimilarityCalculator.calculateSimilarity(x, y);
-                    double simString = fNodeStringSimilarityCalculator.calculateSimilarity(x.getValue(), y.getValue());
+                    double simString = fLeftNodeValues.calculateSimilarity(xId, fRightNodeValues, yId);
                     return (simNode >= t) && (simString >= fNodeStringSimilarityThreshold);
                 }
             }
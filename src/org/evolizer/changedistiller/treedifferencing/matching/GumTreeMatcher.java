@@ -0,0 +1,610 @@
+/*
+ * Copyright 2009 University of Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.evolizer.changedistiller.treedifferencing.matching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.evolizer.changedistiller.treedifferencing.FlatTree;
+import org.evolizer.changedistiller.treedifferencing.ITreeMatcher;
+import org.evolizer.changedistiller.treedifferencing.Node;
+import org.evolizer.changedistiller.treedifferencing.NodePair;
+import org.evolizer.changedistiller.treedifferencing.StringProfiles;
+import org.evolizer.changedistiller.treedifferencing.matching.measure.INodeSimilarityCalculator;
+import org.evolizer.changedistiller.treedifferencing.matching.measure.IStringSimilarityCalculator;
+
+/**
+ * Implementation of the matching of GumTree (Falleri et al., Fine-grained and Accurate Source Code Differencing, ASE
+ * 2014).
+ * 
+ * <p>
+ * The top-down phase matches the highest isomorphic subtrees: subtrees are taken from lists indexed by height, and
+ * subtrees of the same height with the same structural hash are compared. A subtree that is isomorphic to exactly one
+ * subtree of the other tree is matched with it node by node; subtrees with several isomorphic partners are matched
+ * afterwards in descending order of the dice similarity of their parents. Subtrees lower than the minimum height, such
+ * as single leaves, are only matched if they are unique in both trees. The bottom-up phase matches inner nodes in
+ * post-order with the unmatched node of the same label whose descendants share the most matched descendants with
+ * theirs, if the dice similarity of the descendants reaches the node similarity threshold. The unmatched children of
+ * two such nodes with small subtrees are recovered by aligning them with a longest common subsequence, first by
+ * isomorphism, then by label and, for leaves, by string similarity. Finally, the leaves that are still unmatched are
+ * matched among the children of matched nodes of any size, first identical ones, then the most similar ones.
+ * 
+ * <p>
+ * Isomorphic subtrees are found through hashes and the candidates of an inner node by walking up from the partners of
+ * its descendants, which takes <code>O(n d<sup>2</sup>)</code> for trees with <code>n</code> nodes and depth
+ * <code>d</code>. Groups of more than 1000 pairs of subtrees with the same hash are paired in the order of the trees
+ * instead of each with each. The recovery is quadratic in the number of children of small subtrees and the final phase
+ * in the number of unmatched leaves of a matched node, so the matching is not linear if many leaves change. The
+ * similarity calculator for inner nodes is not used.
+ * 
+ * @author fluri
+ * @see BestLeafTreeMatcher
+ */
+public class GumTreeMatcher implements ITreeMatcher {
+
+    private static final int DEFAULT_MINIMUM_HEIGHT = 1;
+    private static final int DEFAULT_MAXIMUM_RECOVERY_SIZE = 100;
+    private static final int MAXIMUM_AMBIGUOUS_PAIRS = 1000;
+
+    private int fMinimumHeight;
+    private int fMaximumRecoverySize;
+
+    private IStringSimilarityCalculator fLeafStringSimilarityCalculator;
+    private double fLeafStringSimilarityThreshold;
+    private double fNodeSimilarityThreshold;
+
+    private boolean fDynamicEnabled;
+    private int fDynamicDepth;
+    private double fDynamicThreshold;
+
+    private Set<NodePair> fMatch;
+
+    private FlatTree fLeftTree;
+    private FlatTree fRightTree;
+    private StringProfiles fLeftValues;
+    private StringProfiles fRightValues;
+    private int[] fRightPartner;
+    private int[] fLeftPartner;
+
+    /**
+     * Creates a new GumTree matcher that matches subtrees with a height of at least <code>1</code> top-down, single
+     * leaves only if they are unique, and recovers the children of subtrees with at most <code>100</code> nodes.
+     */
+    public GumTreeMatcher() {
+        this(DEFAULT_MINIMUM_HEIGHT, DEFAULT_MAXIMUM_RECOVERY_SIZE);
+    }
+
+    /**
+     * Creates a new GumTree matcher.
+     * 
+     * @param minimumHeight
+     *            the height from which on isomorphic subtrees with several partners are matched top-down,
+     *            <code>0</code> to match single leaves with several partners
+     * @param maximumRecoverySize
+     *            the number of nodes up to which the children of matched inner nodes are recovered
+     */
+    public GumTreeMatcher(int minimumHeight, int maximumRecoverySize) {
+        fMinimumHeight = minimumHeight;
+        fMaximumRecoverySize = maximumRecoverySize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void init(
+            IStringSimilarityCalculator leafStringSimCalc,
+            double leafStringSimThreshold,
+            INodeSimilarityCalculator nodeSimCalc,
+            double nodeSimThreshold) {
+        fLeafStringSimilarityCalculator = leafStringSimCalc;
+        fLeafStringSimilarityThreshold = leafStringSimThreshold;
+        fNodeSimilarityThreshold = nodeSimThreshold;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void init(
+            IStringSimilarityCalculator leafStringSimCalc,
+            double leafStringSimThreshold,
+            IStringSimilarityCalculator nodeStringSimCalc,
+            double nodeStringSimThreshold,
+            INodeSimilarityCalculator nodeSimCalc,
+            double nodeSimThreshold) {
+        init(leafStringSimCalc, leafStringSimThreshold, nodeSimCalc, nodeSimThreshold);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void enableDynamicThreshold(int depth, double threshold) {
+        fDynamicDepth = depth;
+        fDynamicThreshold = threshold;
+        fDynamicEnabled = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void disableDynamicThreshold() {
+        fDynamicEnabled = false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setMatchingSet(Set<NodePair> matchingSet) {
+        fMatch = matchingSet;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void match(Node left, Node right) {
+        fLeftTree = FlatTree.of(left);
+        fRightTree = FlatTree.of(right);
+        fLeftValues = fLeftTree.getProfiles(fLeafStringSimilarityCalculator);
+        fRightValues = fRightTree.getProfiles(fLeafStringSimilarityCalculator);
+        fRightPartner = new int[fLeftTree.size()];
+        fLeftPartner = new int[fRightTree.size()];
+        Arrays.fill(fRightPartner, FlatTree.NO_NODE);
+        Arrays.fill(fLeftPartner, FlatTree.NO_NODE);
+
+        matchTopDown();
+        matchBottomUp();
+        matchLeaves();
+
+        for (int xId = 0; xId < fLeftTree.size(); xId++) {
+            if (fRightPartner[xId] != FlatTree.NO_NODE) {
+                fMatch.add(new NodePair(fLeftTree.getNode(xId), fRightTree.getNode(fRightPartner[xId])));
+            }
+        }
+        fLeftTree = null;
+        fRightTree = null;
+        fLeftValues = null;
+        fRightValues = null;
+    }
+
+    private void matchTopDown() {
+        HeightList leftList = new HeightList(fLeftTree);
+        HeightList rightList = new HeightList(fRightTree);
+        LeafPairQueue candidates = new LeafPairQueue();
+        List<int[]> ambiguous = new ArrayList<int[]>();
+        boolean[] leftKept = new boolean[fLeftTree.size()];
+        boolean[] rightKept = new boolean[fRightTree.size()];
+        while (Math.min(leftList.peekHeight(), rightList.peekHeight()) >= 0) {
+            if (leftList.peekHeight() > rightList.peekHeight()) {
+                for (int xId : leftList.pop()) {
+                    leftList.open(xId);
+                }
+            } else if (leftList.peekHeight() < rightList.peekHeight()) {
+                for (int yId : rightList.pop()) {
+                    rightList.open(yId);
+                }
+            } else {
+                boolean low = leftList.peekHeight() < fMinimumHeight;
+                List<Integer> leftSubtrees = leftList.pop();
+                List<Integer> rightSubtrees = rightList.pop();
+                Map<Long, List<Integer>> leftByHash = groupByHash(fLeftTree, leftSubtrees);
+                Map<Long, List<Integer>> rightByHash = groupByHash(fRightTree, rightSubtrees);
+                for (int xId : leftSubtrees) {
+                    long hash = fLeftTree.getSubtreeHash(xId);
+                    List<Integer> partners = rightByHash.get(hash);
+                    List<Integer> twins = leftByHash.get(hash);
+                    if ((partners == null) || (low && ((partners.size() > 1) || (twins.size() > 1)))) {
+                        // lower subtrees, such as leaves, are only matched if they are unique in both trees
+                        continue;
+                    }
+                    if ((long) twins.size() * partners.size() > MAXIMUM_AMBIGUOUS_PAIRS) {
+                        if (xId == twins.get(0)) {
+                            pairInOrder(twins, partners, ambiguous, leftKept, rightKept);
+                        }
+                        continue;
+                    }
+                    List<Integer> isomorphic = new ArrayList<Integer>();
+                    for (int yId : partners) {
+                        if (fLeftTree.isIsomorphic(xId, fRightTree, yId)) {
+                            isomorphic.add(yId);
+                        }
+                    }
+                    if ((isomorphic.size() == 1) && (leftByHash.get(hash).size() == 1)) {
+                        matchSubtrees(xId, isomorphic.get(0));
+                    } else {
+                        for (int yId : isomorphic) {
+                            ambiguous.add(new int[]{xId, yId});
+                        }
+                    }
+                    leftKept[xId] = !isomorphic.isEmpty();
+                    for (int yId : isomorphic) {
+                        rightKept[yId] = true;
+                    }
+                }
+                for (int xId : leftSubtrees) {
+                    if (!leftKept[xId]) {
+                        leftList.open(xId);
+                    }
+                }
+                for (int yId : rightSubtrees) {
+                    if (!rightKept[yId]) {
+                        rightList.open(yId);
+                    }
+                }
+            }
+        }
+
+        // subtrees with several isomorphic partners, the ones with the most similar parents first
+        Map<Long, Double> parentDice = new HashMap<Long, Double>();
+        for (int[] pair : ambiguous) {
+            int xParent = fLeftTree.getParent(pair[0]);
+            int yParent = fRightTree.getParent(pair[1]);
+            double dice = 0.0;
+            if ((xParent != FlatTree.NO_NODE) && (yParent != FlatTree.NO_NODE)) {
+                long parents = ((long) xParent << 32) | yParent;
+                Double cached = parentDice.get(parents);
+                if (cached == null) {
+                    cached = dice(xParent, yParent, countCommonDescendants(xParent, yParent));
+                    parentDice.put(parents, cached);
+                }
+                dice = cached;
+            }
+            candidates.add(pair[0], pair[1], dice);
+        }
+        while (!candidates.isEmpty()) {
+            int pair = candidates.poll();
+            int xId = candidates.getLeft(pair);
+            int yId = candidates.getRight(pair);
+            if ((fRightPartner[xId] == FlatTree.NO_NODE) && (fLeftPartner[yId] == FlatTree.NO_NODE)) {
+                matchSubtrees(xId, yId);
+            }
+        }
+    }
+
+    /**
+     * Pairs the subtrees of a large group with the same hash in the order of the trees instead of each with each. The
+     * ones left over are kept, like subtrees with several isomorphic partners.
+     */
+    private void pairInOrder(
+            List<Integer> leftSubtrees,
+            List<Integer> rightSubtrees,
+            List<int[]> ambiguous,
+            boolean[] leftKept,
+            boolean[] rightKept) {
+        int xLast = leftSubtrees.get(leftSubtrees.size() - 1);
+        int yLast = rightSubtrees.get(rightSubtrees.size() - 1);
+        for (int i = 0; i < Math.max(leftSubtrees.size(), rightSubtrees.size()); i++) {
+            int xId = (i < leftSubtrees.size()) ? leftSubtrees.get(i) : xLast;
+            int yId = (i < rightSubtrees.size()) ? rightSubtrees.get(i) : yLast;
+            if (fLeftTree.isIsomorphic(xId, fRightTree, yId)) {
+                if ((i < leftSubtrees.size()) && (i < rightSubtrees.size())) {
+                    ambiguous.add(new int[]{xId, yId});
+                }
+                leftKept[xId] = true;
+                rightKept[yId] = true;
+            }
+        }
+    }
+
+    private void matchBottomUp() {
+        int[] common = new int[fRightTree.size()];
+        int[] visited = new int[fRightTree.size()];
+        Arrays.fill(visited, -1);
+        for (int i = 0; i < fLeftTree.size(); i++) {
+            int xId = fLeftTree.getNodeInPostorder(i);
+            if ((fRightPartner[xId] != FlatTree.NO_NODE) || fLeftTree.isLeaf(xId)) {
+                continue;
+            }
+            if (xId == 0) {
+                // roots are matched if they have the same label
+                if ((fLeftPartner[0] == FlatTree.NO_NODE)
+                        && (fLeftTree.getLabelOrdinal(0) == fRightTree.getLabelOrdinal(0))) {
+                    match(0, 0);
+                    recover(0, 0);
+                }
+                continue;
+            }
+
+            // candidates are the ancestors of the partners of the descendants, counting the common descendants
+            List<Integer> candidates = new ArrayList<Integer>();
+            int end = xId + fLeftTree.getSubtreeSize(xId);
+            for (int dId = xId + 1; dId < end; dId++) {
+                int yId = fRightPartner[dId];
+                if (yId != FlatTree.NO_NODE) {
+                    for (yId = fRightTree.getParent(yId); yId != FlatTree.NO_NODE; yId = fRightTree.getParent(yId)) {
+                        if (visited[yId] != xId) {
+                            visited[yId] = xId;
+                            common[yId] = 0;
+                            candidates.add(yId);
+                        }
+                        common[yId]++;
+                    }
+                }
+            }
+
+            int best = FlatTree.NO_NODE;
+            double bestDice = 0.0;
+            for (int yId : candidates) {
+                if ((fLeftPartner[yId] == FlatTree.NO_NODE)
+                        && (fLeftTree.getLabelOrdinal(xId) == fRightTree.getLabelOrdinal(yId))) {
+                    double dice = dice(xId, yId, common[yId]);
+                    if ((dice > bestDice) || ((dice == bestDice) && (best != FlatTree.NO_NODE) && (yId < best))) {
+                        best = yId;
+                        bestDice = dice;
+                    }
+                }
+            }
+            if ((best != FlatTree.NO_NODE) && (bestDice >= getThreshold(xId, best))) {
+                match(xId, best);
+                recover(xId, best);
+            }
+        }
+    }
+
+    /**
+     * Matches the unmatched leaves among the children of matched nodes, whatever the size of their subtrees: first
+     * the identical ones in the order of the children, then the most similar ones.
+     */
+    private void matchLeaves() {
+        LeafPairQueue candidates = new LeafPairQueue();
+        for (int xId = 0; xId < fLeftTree.size(); xId++) {
+            int yId = fRightPartner[xId];
+            if ((yId == FlatTree.NO_NODE) || fLeftTree.isLeaf(xId) || fRightTree.isLeaf(yId)) {
+                continue;
+            }
+            int[] xLeaves = getUnmatchedLeaves(fLeftTree, xId, fRightPartner);
+            int[] yLeaves = getUnmatchedLeaves(fRightTree, yId, fLeftPartner);
+            if ((xLeaves.length == 0) || (yLeaves.length == 0)) {
+                continue;
+            }
+            Map<Long, List<Integer>> yByHash = groupByHash(fRightTree, yLeaves);
+            for (int x : xLeaves) {
+                List<Integer> identical = yByHash.get(fLeftTree.getSubtreeHash(x));
+                if (identical != null) {
+                    for (int i = 0; i < identical.size(); i++) {
+                        if (fLeftTree.isIsomorphic(x, fRightTree, identical.get(i))) {
+                            match(x, identical.remove(i));
+                            break;
+                        }
+                    }
+                }
+            }
+            for (int x : xLeaves) {
+                if (fRightPartner[x] != FlatTree.NO_NODE) {
+                    continue;
+                }
+                for (int y : yLeaves) {
+                    if ((fLeftPartner[y] == FlatTree.NO_NODE) && isSimilar(x, y)) {
+                        candidates.add(x, y, fLeftValues.calculateSimilarity(x, fRightValues, y));
+                    }
+                }
+            }
+        }
+        while (!candidates.isEmpty()) {
+            int pair = candidates.poll();
+            int xId = candidates.getLeft(pair);
+            int yId = candidates.getRight(pair);
+            if ((fRightPartner[xId] == FlatTree.NO_NODE) && (fLeftPartner[yId] == FlatTree.NO_NODE)) {
+                match(xId, yId);
+            }
+        }
+    }
+
+    private double getThreshold(int xId, int yId) {
+        if (fDynamicEnabled && (fLeftTree.getLeafCount(xId) < fDynamicDepth)
+                && (fRightTree.getLeafCount(yId) < fDynamicDepth)) {
+            return fDynamicThreshold;
+        }
+        return fNodeSimilarityThreshold;
+    }
+
+    /**
+     * Matches the unmatched children of the matched nodes, if their subtrees are small enough: first the isomorphic
+     * ones, then the ones that are similar, recovering the children of these in turn.
+     */
+    private void recover(int xId, int yId) {
+        if (Math.max(fLeftTree.getSubtreeSize(xId), fRightTree.getSubtreeSize(yId)) > fMaximumRecoverySize) {
+            return;
+        }
+        int[] xChildren = getUnmatchedChildren(fLeftTree, xId, fRightPartner);
+        int[] yChildren = getUnmatchedChildren(fRightTree, yId, fLeftPartner);
+        for (int[] pair : align(xChildren, yChildren, true)) {
+            matchSubtrees(pair[0], pair[1]);
+        }
+        xChildren = getUnmatchedChildren(fLeftTree, xId, fRightPartner);
+        yChildren = getUnmatchedChildren(fRightTree, yId, fLeftPartner);
+        for (int[] pair : align(xChildren, yChildren, false)) {
+            match(pair[0], pair[1]);
+            recover(pair[0], pair[1]);
+        }
+    }
+
+    /**
+     * Longest common subsequence of the children, equal if they are isomorphic or, respectively, similar.
+     */
+    private List<int[]> align(int[] xChildren, int[] yChildren, boolean isomorphic) {
+        int[][] length = new int[xChildren.length + 1][yChildren.length + 1];
+        for (int i = xChildren.length - 1; i >= 0; i--) {
+            for (int j = yChildren.length - 1; j >= 0; j--) {
+                boolean equal;
+                if (isomorphic) {
+                    equal = fLeftTree.isIsomorphic(xChildren[i], fRightTree, yChildren[j]);
+                } else {
+                    equal = isSimilar(xChildren[i], yChildren[j]);
+                }
+                if (equal) {
+                    length[i][j] = length[i + 1][j + 1] + 1;
+                } else {
+                    length[i][j] = Math.max(length[i + 1][j], length[i][j + 1]);
+                }
+            }
+        }
+        List<int[]> pairs = new ArrayList<int[]>();
+        int i = 0;
+        int j = 0;
+        while ((i < xChildren.length) && (j < yChildren.length)) {
+            if (length[i][j] == length[i + 1][j]) {
+                i++;
+            } else if (length[i][j] == length[i][j + 1]) {
+                j++;
+            } else {
+                pairs.add(new int[]{xChildren[i++], yChildren[j++]});
+            }
+        }
+        return pairs;
+    }
+
+    private boolean isSimilar(int xId, int yId) {
+        if (fLeftTree.getLabelOrdinal(xId) != fRightTree.getLabelOrdinal(yId)) {
+            return false;
+        }
+        if (fLeftTree.isLeaf(xId) && fRightTree.isLeaf(yId)) {
+            return (fLeftTree.getValue(xId) != null)
+                    && (fRightTree.getValue(yId) != null)
+                    && (fLeftValues.calculateSimilarity(xId, fRightValues, yId) >= fLeafStringSimilarityThreshold);
+        }
+        return !fLeftTree.isLeaf(xId) && !fRightTree.isLeaf(yId);
+    }
+
+    private int[] getUnmatchedChildren(FlatTree tree, int id, int[] partner) {
+        int[] children = new int[tree.getSubtreeSize(id)];
+        int size = 0;
+        for (int c = tree.getFirstChild(id); c != FlatTree.NO_NODE; c = tree.getNextSibling(c)) {
+            if (partner[c] == FlatTree.NO_NODE) {
+                children[size++] = c;
+            }
+        }
+        return Arrays.copyOf(children, size);
+    }
+
+    private int[] getUnmatchedLeaves(FlatTree tree, int id, int[] partner) {
+        int[] children = getUnmatchedChildren(tree, id, partner);
+        int size = 0;
+        for (int c : children) {
+            if (tree.isLeaf(c)) {
+                children[size++] = c;
+            }
+        }
+        return Arrays.copyOf(children, size);
+    }
+
+    /**
+     * Number of descendants of the left node whose partners are descendants of the right node.
+     */
+    private int countCommonDescendants(int xId, int yId) {
+        int common = 0;
+        int xEnd = xId + fLeftTree.getSubtreeSize(xId);
+        int yEnd = yId + fRightTree.getSubtreeSize(yId);
+        for (int dId = xId + 1; dId < xEnd; dId++) {
+            int partner = fRightPartner[dId];
+            if ((partner > yId) && (partner < yEnd)) {
+                common++;
+            }
+        }
+        return common;
+    }
+
+    private double dice(int xId, int yId, int common) {
+        int descendants = fLeftTree.getSubtreeSize(xId) - 1 + fRightTree.getSubtreeSize(yId) - 1;
+        return descendants > 0 ? 2.0 * common / descendants : 0.0;
+    }
+
+    private Map<Long, List<Integer>> groupByHash(FlatTree tree, List<Integer> subtrees) {
+        int[] ids = new int[subtrees.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = subtrees.get(i);
+        }
+        return groupByHash(tree, ids);
+    }
+
+    private Map<Long, List<Integer>> groupByHash(FlatTree tree, int[] subtrees) {
+        Map<Long, List<Integer>> groups = new HashMap<Long, List<Integer>>();
+        for (int id : subtrees) {
+            List<Integer> group = groups.get(tree.getSubtreeHash(id));
+            if (group == null) {
+                group = new ArrayList<Integer>(1);
+                groups.put(tree.getSubtreeHash(id), group);
+            }
+            group.add(id);
+        }
+        return groups;
+    }
+
+    /**
+     * Matches the isomorphic subtrees node by node; their nodes have the same offsets in pre-order.
+     */
+    private void matchSubtrees(int xId, int yId) {
+        for (int i = 0; i < fLeftTree.getSubtreeSize(xId); i++) {
+            match(xId + i, yId + i);
+        }
+    }
+
+    private void match(int xId, int yId) {
+        fRightPartner[xId] = yId;
+        fLeftPartner[yId] = xId;
+    }
+
+    /**
+     * Subtrees of a tree in lists indexed by their height, the highest ones taken first.
+     */
+    private static final class HeightList {
+
+        private FlatTree fTree;
+        private List<List<Integer>> fSubtrees;
+        private int fHeight;
+
+        HeightList(FlatTree tree) {
+            fTree = tree;
+            fHeight = tree.getHeight(0);
+            fSubtrees = new ArrayList<List<Integer>>(fHeight + 1);
+            for (int h = 0; h <= fHeight; h++) {
+                fSubtrees.add(new ArrayList<Integer>());
+            }
+            fSubtrees.get(fHeight).add(0);
+        }
+
+        /**
+         * Returns the greatest height of the subtrees in the lists, <code>-1</code> if they are empty.
+         */
+        int peekHeight() {
+            while ((fHeight >= 0) && fSubtrees.get(fHeight).isEmpty()) {
+                fHeight--;
+            }
+            return fHeight;
+        }
+
+        /**
+         * Removes and returns the subtrees with the greatest height.
+         */
+        List<Integer> pop() {
+            int height = peekHeight();
+            List<Integer> result = fSubtrees.get(height);
+            fSubtrees.set(height, new ArrayList<Integer>());
+            return result;
+        }
+
+        /**
+         * Adds the subtrees of the children of the given node, which are lower than the subtrees popped so far.
+         */
+        void open(int id) {
+            for (int c = fTree.getFirstChild(id); c != FlatTree.NO_NODE; c = fTree.getNextSibling(c)) {
+                fSubtrees.get(fTree.getHeight(c)).add(c);
+            }
+        }
+    }
+}
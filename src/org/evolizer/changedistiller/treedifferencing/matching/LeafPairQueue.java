@@ -0,0 +1,142 @@
+/*
+ * Copyright 2009 University of Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.evolizer.changedistiller.treedifferencing.matching;
+
+import java.util.Arrays;
+
+import org.evolizer.changedistiller.treedifferencing.LeafPair;
+
+/**
+ * Priority queue of leaf pairs, kept in parallel arrays of the ids of the left and right leaf and their similarity.
+ * 
+ * <p>
+ * Pairs are polled in descending order of similarity; pairs with the same similarity in the order they were added.
+ * This is the order of a stable sort of {@link LeafPair}s. The heap is only built when the first pair is polled, so
+ * adding is cheap and polling costs <code>O(log n)</code> per pair actually needed. The arrays are kept when the queue
+ * is cleared.
+ * 
+ * @author fluri
+ * @see LeafPair
+ */
+final class LeafPairQueue {
+
+    private int[] fLeft = new int[16];
+    private int[] fRight = new int[16];
+    private double[] fSimilarity = new double[16];
+    private int[] fHeap = new int[16];
+    private int fSize;
+    private int fHeapSize = -1;
+
+    /**
+     * Removes all pairs.
+     */
+    void clear() {
+        fSize = 0;
+        fHeapSize = -1;
+    }
+
+    /**
+     * Adds a pair. Pairs can only be added before the first one is polled.
+     */
+    void add(int left, int right, double similarity) {
+        if (fHeapSize > -1) {
+            throw new IllegalStateException("Pairs cannot be added once polling started.");
+        }
+        if (fSize == fLeft.length) {
+            int capacity = fSize * 2;
+            fLeft = Arrays.copyOf(fLeft, capacity);
+            fRight = Arrays.copyOf(fRight, capacity);
+            fSimilarity = Arrays.copyOf(fSimilarity, capacity);
+            fHeap = new int[capacity];
+        }
+        fLeft[fSize] = left;
+        fRight[fSize] = right;
+        fSimilarity[fSize] = similarity;
+        fSize++;
+    }
+
+    /**
+     * Adds the pairs of the other queue, in the order they were added to it. As with {@link #add(int, int, double)},
+     * polling must not have started.
+     */
+    void addAll(LeafPairQueue other) {
+        for (int pair = 0; pair < other.fSize; pair++) {
+            add(other.fLeft[pair], other.fRight[pair], other.fSimilarity[pair]);
+        }
+    }
+
+    int size() {
+        return fSize;
+    }
+
+    boolean isEmpty() {
+        return (fHeapSize == -1) ? fSize == 0 : fHeapSize == 0;
+    }
+
+    /**
+     * Removes the most similar pair and returns its number, by which its leaves and similarity are accessed.
+     */
+    int poll() {
+        if (fHeapSize == -1) {
+            for (int i = 0; i < fSize; i++) {
+                fHeap[i] = i;
+            }
+            fHeapSize = fSize;
+            for (int i = (fHeapSize / 2) - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+        int result = fHeap[0];
+        fHeap[0] = fHeap[--fHeapSize];
+        siftDown(0);
+        return result;
+    }
+
+    int getLeft(int pair) {
+        return fLeft[pair];
+    }
+
+    int getRight(int pair) {
+        return fRight[pair];
+    }
+
+    double getSimilarity(int pair) {
+        return fSimilarity[pair];
+    }
+
+    private void siftDown(int position) {
+        int i = position;
+        int pair = fHeap[i];
+        int child = (2 * i) + 1;
+        while (child < fHeapSize) {
+            if ((child + 1 < fHeapSize) && before(fHeap[child + 1], fHeap[child])) {
+                child++;
+            }
+            if (!before(fHeap[child], pair)) {
+                break;
+            }
+            fHeap[i] = fHeap[child];
+            i = child;
+            child = (2 * i) + 1;
+        }
+        fHeap[i] = pair;
+    }
+
+    private boolean before(int pair, int other) {
+        int c = Double.compare(fSimilarity[pair], fSimilarity[other]);
+        return (c > 0) || ((c == 0) && (pair < other));
+    }
+}
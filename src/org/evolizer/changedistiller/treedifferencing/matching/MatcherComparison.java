@@ -0,0 +1,131 @@
+/*
+ * Copyright 2009 University of Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.evolizer.changedistiller.treedifferencing.matching;
+
+import org.evolizer.changedistiller.treedifferencing.ITreeMatcher;
+import org.evolizer.changedistiller.treedifferencing.Node;
+import org.evolizer.changedistiller.treedifferencing.NodeMatching;
+import org.evolizer.changedistiller.treedifferencing.NodePair;
+
+/**
+ * Compares the {@link GumTreeMatcher} with the {@link BestLeafTreeMatcher}, both configured by the
+ * {@link MatchingFactory}, on the same trees.
+ * 
+ * <p>
+ * For each pair of trees passed to {@link #compare(Node, Node)}, both matchers run on the same trees and the time they
+ * take is summed up, as are the number of pairs each of them finds and the number of pairs they have in common. The
+ * agreement is the share of the pairs of one matcher that the other one finds as well.
+ * 
+ * @author fluri
+ * @see MatchingFactory
+ */
+public class MatcherComparison {
+
+    private int fComparisons;
+    private long fReferenceTime;
+    private long fCandidateTime;
+    private long fReferencePairs;
+    private long fCandidatePairs;
+    private long fCommonPairs;
+
+    /**
+     * Matches the trees with both matchers and adds the outcome to the comparison.
+     * 
+     * @param left
+     *            the left tree
+     * @param right
+     *            the right tree
+     */
+    public void compare(Node left, Node right) {
+        NodeMatching reference = new NodeMatching();
+        ITreeMatcher matcher = MatchingFactory.getBestLeafTreeMatcher(reference);
+        long start = System.nanoTime();
+        matcher.match(left, right);
+        fReferenceTime += System.nanoTime() - start;
+
+        NodeMatching candidate = new NodeMatching();
+        matcher = MatchingFactory.getGumTreeMatcher(candidate);
+        start = System.nanoTime();
+        matcher.match(left, right);
+        fCandidateTime += System.nanoTime() - start;
+
+        fComparisons++;
+        fReferencePairs += reference.size();
+        fCandidatePairs += candidate.size();
+        for (NodePair pair : candidate) {
+            if (reference.contains(pair.getLeft(), pair.getRight())) {
+                fCommonPairs++;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of compared tree pairs.
+     * 
+     * @return the number of comparisons
+     */
+    public int getComparisonCount() {
+        return fComparisons;
+    }
+
+    /**
+     * Returns the time the {@link BestLeafTreeMatcher} took for all comparisons.
+     * 
+     * @return the time in nanoseconds
+     */
+    public long getReferenceTime() {
+        return fReferenceTime;
+    }
+
+    /**
+     * Returns the time the {@link GumTreeMatcher} took for all comparisons.
+     * 
+     * @return the time in nanoseconds
+     */
+    public long getCandidateTime() {
+        return fCandidateTime;
+    }
+
+    /**
+     * Returns the share of the pairs found by the {@link BestLeafTreeMatcher} that the {@link GumTreeMatcher} found as
+     * well.
+     * 
+     * @return the recall of the GumTree matcher, <code>1</code> if there are no pairs
+     */
+    public double getRecall() {
+        return fReferencePairs == 0 ? 1.0 : (double) fCommonPairs / fReferencePairs;
+    }
+
+    /**
+     * Returns the share of the pairs found by the {@link GumTreeMatcher} that the {@link BestLeafTreeMatcher} found as
+     * well.
+     * 
+     * @return the precision of the GumTree matcher, <code>1</code> if there are no pairs
+     */
+    public double getPrecision() {
+        return fCandidatePairs == 0 ? 1.0 : (double) fCommonPairs / fCandidatePairs;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return fComparisons + " comparisons: best leaf " + (fReferenceTime / 1000000) + " ms, " + fReferencePairs
+                + " pairs; GumTree " + (fCandidateTime / 1000000) + " ms, " + fCandidatePairs + " pairs; "
+                + fCommonPairs + " common pairs, recall " + getRecall() + ", precision " + getPrecision();
+    }
+}
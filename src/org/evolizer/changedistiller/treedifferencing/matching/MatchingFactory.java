@@ -15,6 +15,11 @@
  */
 package org.evolizer.changedistiller.treedifferencing.matching;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
 import java.util.Set;
 
 import org.eclipse.jface.preference.IPreferenceStore;
@@ -28,17 +33,32 @@ import org.evolizer.changedistiller.treedifferencing.matching.measure.INodeSimil
 import org.evolizer.changedistiller.treedifferencing.matching.measure.IStringSimilarityCalculator;
 import org.evolizer.changedistiller.treedifferencing.matching.measure.LevenshteinCalculator;
 import org.evolizer.changedistiller.treedifferencing.matching.measure.NGramsCalculator;
+import org.evolizer.core.exceptions.EvolizerRuntimeException;
 
 /**
  * Factory to generate a {@link ITreeMatcher} out of specified preference values.
  * 
+ * <p>
+ * The preference values are read from the preference store of the {@link ChangeDistillerPlugin} if the plugin runs,
+ * otherwise from <code>matching.properties</code> on the class path or in the working directory. They are read once;
+ * the string similarity calculators they specify are shared by all matchers. By default, the matchers match the best
+ * leaves; with the adaptive algorithm, they choose the matching strategy by the size of the trees, see
+ * {@link SizeAdaptiveTreeMatcher}. Best matching compares the nodes of large trees in parallel if more than one
+ * thread is configured, see {@link BestLeafTreeMatcher#enableParallelScoring(int, int)}.
+ * 
  * @author fluri
  * @see ITreeMatcher
  * @see BestLeafTreeMatcher
  * @see DefaultTreeMatcher
+ * @see GumTreeMatcher
+ * @see SizeAdaptiveTreeMatcher
  */
 public final class MatchingFactory {
 
+    private static final String PROPERTIES_FILE = "matching.properties";
+
+    private static Configuration sConfiguration;
+
     private MatchingFactory() {}
 
     /**
@@ -49,58 +69,242 @@ public final class MatchingFactory {
      * @return the tree matcher out of specified preference values
      */
     public static ITreeMatcher getMatcher(Set<NodePair> matchingSet) {
+        Configuration configuration = getConfiguration();
+        return new SizeAdaptiveTreeMatcher(
+                configure(new DefaultTreeMatcher(), configuration, matchingSet),
+                configure(new BestLeafTreeMatcher(), configuration, matchingSet),
+                configure(new GumTreeMatcher(), configuration, matchingSet),
+                configuration.fSmallTreeSize,
+                configuration.fLargeTreeSize);
+    }
+
+    /**
+     * Returns a {@link BestLeafTreeMatcher} according to specified preference values, whatever the size of the trees.
+     * 
+     * @param matchingSet
+     *            in which the matcher stores the match pairs
+     * @return the best leaf tree matcher
+     */
+    public static ITreeMatcher getBestLeafTreeMatcher(Set<NodePair> matchingSet) {
+        return configure(new BestLeafTreeMatcher(), getConfiguration(), matchingSet);
+    }
+
+    /**
+     * Returns a {@link GumTreeMatcher} according to specified preference values, whatever the size of the trees.
+     * 
+     * @param matchingSet
+     *            in which the matcher stores the match pairs
+     * @return the GumTree matcher
+     */
+    public static ITreeMatcher getGumTreeMatcher(Set<NodePair> matchingSet) {
+        return configure(new GumTreeMatcher(), getConfiguration(), matchingSet);
+    }
 
-        // leaf matching
-        String leaf = IChangeDistillerPreferenceConstants.PREF_STRING_SIM_NGRAMS;
-        IStringSimilarityCalculator leafCalc = getStringSimilarityMeasure(null, leaf);
-        if (leafCalc instanceof NGramsCalculator) {
-            ((NGramsCalculator) leafCalc).setN(2);
+    /**
+     * Discards the preference values read so far; matchers returned afterwards read them again.
+     */
+    public static synchronized void reloadConfiguration() {
+        sConfiguration = null;
+    }
+
+    private static synchronized Configuration getConfiguration() {
+        if (sConfiguration == null) {
+            if (ChangeDistillerPlugin.getDefault() != null) {
+                sConfiguration = new Configuration(ChangeDistillerPlugin.getDefault().getPreferenceStore());
+            } else {
+                sConfiguration = new Configuration(loadProperties());
+            }
         }
+        return sConfiguration;
+    }
 
-        double lTh = 0.6;
-
-        // node string matching
-        IStringSimilarityCalculator nodeStringCalc = leafCalc;
-        double nStTh = lTh;
-//        if (store.getBoolean(IChangeDistillerPreferenceConstants.NODE_STRING_SIM_ENABLEMENT)) {
-//            String nodeString = store.getString(IChangeDistillerPreferenceConstants.NODE_STRING_SIM);
-//            nodeStringCalc = getStringSimilarityMeasure(store, nodeString);
-//            if (nodeStringCalc instanceof NGramsCalculator) {
-//                ((NGramsCalculator) nodeStringCalc).setN(store
-//                        .getInt(IChangeDistillerPreferenceConstants.NODE_STRING_SIM_NGRAMS_VALUE));
-//            }
-//
-//            nStTh = store.getDouble(IChangeDistillerPreferenceConstants.NODE_STRING_SIM_THRESHOLD);
-//        }
-
-        // node matching
-        INodeSimilarityCalculator nodeCalc = null;
-        nodeCalc = new ChawatheCalculator();
+    private static ITreeMatcher configure(
+            ITreeMatcher matcher,
+            Configuration configuration,
+            Set<NodePair> matchingSet) {
+        INodeSimilarityCalculator nodeCalc;
+        if (configuration.fNodeSim.equals(IChangeDistillerPreferenceConstants.PREF_NODE_SIM_DICE)) {
+            nodeCalc = new DiceNodeSimilarity(configuration.fNodeStringCalc, configuration.fNodeStringThreshold);
+        } else {
+            nodeCalc = new ChawatheCalculator();
+        }
         nodeCalc.setLeafMatchSet(matchingSet);
 
-        double nTh = 0.6;
-
-        // best match
-        ITreeMatcher result = null;
-        result = new BestLeafTreeMatcher();
-        result.init(leafCalc, lTh, nodeStringCalc, nStTh, nodeCalc, nTh);
+        matcher.init(
+                configuration.fLeafCalc,
+                configuration.fLeafThreshold,
+                configuration.fNodeStringCalc,
+                configuration.fNodeStringThreshold,
+                nodeCalc,
+                configuration.fNodeThreshold);
+        if (matcher instanceof BestLeafTreeMatcher) {
+            // unchanged subtrees are matched without similarity calculation
+            ((BestLeafTreeMatcher) matcher).enableIdenticalSubtreeMatching();
+            if (configuration.fParallelism > 1) {
+                ((BestLeafTreeMatcher) matcher).enableParallelScoring(
+                        configuration.fParallelTreeSize,
+                        configuration.fParallelism);
+            }
+        }
+        if (configuration.fDynamicEnabled) {
+            matcher.enableDynamicThreshold(configuration.fDynamicDepth, configuration.fDynamicThreshold);
+        }
+        matcher.setMatchingSet(matchingSet);
+        return matcher;
+    }
 
-        // dynamic threshold
-        result.enableDynamicThreshold(4, 0.4);
-        result.setMatchingSet(matchingSet);
-        return result;
+    private static Properties loadProperties() {
+        Properties properties = new Properties();
+        try {
+            InputStream in = MatchingFactory.class.getResourceAsStream("/" + PROPERTIES_FILE);
+            if ((in == null) && new File(PROPERTIES_FILE).isFile()) {
+                in = new FileInputStream(PROPERTIES_FILE);
+            }
+            if (in != null) {
+                try {
+                    properties.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new EvolizerRuntimeException("Error while reading " + PROPERTIES_FILE + ".", e);
+        }
+        return properties;
     }
 
-    private static IStringSimilarityCalculator getStringSimilarityMeasure(IPreferenceStore store, String calc) {
+    private static IStringSimilarityCalculator getStringSimilarityMeasure(String calc, int n) {
         IStringSimilarityCalculator leafCalc;
         if (calc.equals(IChangeDistillerPreferenceConstants.PREF_STRING_SIM_LEVENSHTEIN)) {
             leafCalc = new LevenshteinCalculator();
         } else if (calc.equals(IChangeDistillerPreferenceConstants.PREF_STRING_SIM_NGRAMS)) {
-            leafCalc = new NGramsCalculator();
+            leafCalc = new NGramsCalculator(n);
         } else {
             leafCalc = new LevenshteinCalculator();
         }
         return leafCalc;
     }
 
+    /**
+     * Preference values with the string similarity calculators they specify.
+     */
+    private static final class Configuration {
+
+        private static final int DEFAULT_SMALL_TREE_SIZE = 16;
+        private static final int DEFAULT_LARGE_TREE_SIZE = 1000;
+        private static final int DEFAULT_PARALLEL_TREE_SIZE = 2000;
+
+        private IStringSimilarityCalculator fLeafCalc;
+        private double fLeafThreshold;
+        private IStringSimilarityCalculator fNodeStringCalc;
+        private double fNodeStringThreshold;
+        private String fNodeSim;
+        private double fNodeThreshold;
+        private boolean fDynamicEnabled;
+        private int fDynamicDepth;
+        private double fDynamicThreshold;
+        private int fSmallTreeSize;
+        private int fLargeTreeSize;
+        private int fParallelTreeSize;
+        private int fParallelism;
+
+        Configuration(IPreferenceStore store) {
+            fLeafCalc =
+                    getStringSimilarityMeasure(
+                            store.getString(IChangeDistillerPreferenceConstants.LEAF_STRING_SIM),
+                            store.getInt(IChangeDistillerPreferenceConstants.LEAF_NGRAMS_VALUE));
+            fLeafThreshold = store.getDouble(IChangeDistillerPreferenceConstants.LEAF_STRING_SIM_THRESHOLD);
+            if (store.getBoolean(IChangeDistillerPreferenceConstants.NODE_STRING_SIM_ENABLEMENT)) {
+                fNodeStringCalc =
+                        getStringSimilarityMeasure(
+                                store.getString(IChangeDistillerPreferenceConstants.NODE_STRING_SIM),
+                                store.getInt(IChangeDistillerPreferenceConstants.NODE_STRING_SIM_NGRAMS_VALUE));
+                fNodeStringThreshold = store.getDouble(IChangeDistillerPreferenceConstants.NODE_STRING_SIM_THRESHOLD);
+            } else {
+                fNodeStringCalc = fLeafCalc;
+                fNodeStringThreshold = fLeafThreshold;
+            }
+            fNodeSim = store.getString(IChangeDistillerPreferenceConstants.NODE_SIM);
+            fNodeThreshold = store.getDouble(IChangeDistillerPreferenceConstants.NODE_SIM_THRESHOLD);
+            fDynamicEnabled = store.getBoolean(IChangeDistillerPreferenceConstants.DYNAMIC_THRESHOLD_ENABLEMENT);
+            fDynamicDepth = store.getInt(IChangeDistillerPreferenceConstants.DEPTH_VALUE);
+            fDynamicThreshold = store.getDouble(IChangeDistillerPreferenceConstants.DYNAMIC_THRESHOLD);
+            setTreeSizes(
+                    store.getString(IChangeDistillerPreferenceConstants.LEAF_MATCHING),
+                    store.getInt(IChangeDistillerPreferenceConstants.SMALL_TREE_SIZE),
+                    store.getInt(IChangeDistillerPreferenceConstants.LARGE_TREE_SIZE));
+            fParallelTreeSize = store.getInt(IChangeDistillerPreferenceConstants.PARALLEL_TREE_SIZE);
+            fParallelism = store.getInt(IChangeDistillerPreferenceConstants.PARALLELISM);
+        }
+
+        Configuration(Properties properties) {
+            fLeafCalc =
+                    getStringSimilarityMeasure(
+                            getString(properties, "leaf.string.similarity.measure", "ngrams"),
+                            getInt(properties, "ngrams.n", 2));
+            fLeafThreshold = getDouble(properties, "leaf.string.similarity.threshold", 0.6);
+            String nodeString = getString(properties, "node.string.similarity.measure", "");
+            if (nodeString.length() > 0) {
+                fNodeStringCalc = getStringSimilarityMeasure(nodeString, getInt(properties, "node.ngrams.n", 2));
+                fNodeStringThreshold = getDouble(properties, "node.string.similarity.threshold", fLeafThreshold);
+            } else {
+                fNodeStringCalc = fLeafCalc;
+                fNodeStringThreshold = fLeafThreshold;
+            }
+            fNodeSim = getString(properties, "node.similarity.measure", "chawathe");
+            fNodeThreshold = getDouble(properties, "node.similarity.threshold", 0.6);
+            fDynamicEnabled = Boolean.parseBoolean(getString(properties, "dynamic.threshold.enable", "true"));
+            fDynamicDepth = getInt(properties, "dynamic.threshold.depth", 4);
+            fDynamicThreshold = getDouble(properties, "dynamic.node.threshold", 0.4);
+
+            // first, best, linear or adaptive
+            String algorithm = getString(properties, "match.algorithm", "best");
+            if (algorithm.equals("first")) {
+                algorithm = IChangeDistillerPreferenceConstants.PREF_LEAF_MATCHING_FIRST;
+            } else if (algorithm.equals("best")) {
+                algorithm = IChangeDistillerPreferenceConstants.PREF_LEAF_MATCHING_BEST;
+            } else if (algorithm.equals("linear")) {
+                algorithm = IChangeDistillerPreferenceConstants.PREF_LEAF_MATCHING_LINEAR;
+            }
+            setTreeSizes(
+                    algorithm,
+                    getInt(properties, "small.tree.size", DEFAULT_SMALL_TREE_SIZE),
+                    getInt(properties, "large.tree.size", DEFAULT_LARGE_TREE_SIZE));
+            fParallelTreeSize = getInt(properties, "parallel.tree.size", DEFAULT_PARALLEL_TREE_SIZE);
+            fParallelism = getInt(properties, "parallelism", 1);
+        }
+
+        /**
+         * A single matching strategy is one that is chosen for all sizes.
+         */
+        private void setTreeSizes(String leafMatching, int smallTreeSize, int largeTreeSize) {
+            if (leafMatching.equals(IChangeDistillerPreferenceConstants.PREF_LEAF_MATCHING_FIRST)) {
+                fSmallTreeSize = Integer.MAX_VALUE;
+                fLargeTreeSize = Integer.MAX_VALUE;
+            } else if (leafMatching.equals(IChangeDistillerPreferenceConstants.PREF_LEAF_MATCHING_BEST)) {
+                fSmallTreeSize = 0;
+                fLargeTreeSize = Integer.MAX_VALUE;
+            } else if (leafMatching.equals(IChangeDistillerPreferenceConstants.PREF_LEAF_MATCHING_LINEAR)) {
+                fSmallTreeSize = 0;
+                fLargeTreeSize = 0;
+            } else {
+                fSmallTreeSize = smallTreeSize;
+                fLargeTreeSize = largeTreeSize;
+            }
+        }
+
+        private static String getString(Properties properties, String key, String defaultValue) {
+            return properties.getProperty(key, defaultValue).trim();
+        }
+
+        private static int getInt(Properties properties, String key, int defaultValue) {
+            String value = getString(properties, key, "");
+            return value.length() > 0 ? Integer.parseInt(value) : defaultValue;
+        }
+
+        private static double getDouble(Properties properties, String key, double defaultValue) {
+            String value = getString(properties, key, "");
+            return value.length() > 0 ? Double.parseDouble(value) : defaultValue;
+        }
+    }
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2009 University of Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.evolizer.changedistiller.treedifferencing.matching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.evolizer.changedistiller.treedifferencing.matching.measure.NGramsCalculator;
+
+/**
+ * Inverted index from the n-grams of strings to the ids of the nodes they belong to.
+ * 
+ * <p>
+ * The index returns the candidates for a string that can reach a given similarity threshold with the
+ * {@link NGramsCalculator}: the number of n-grams a candidate shares with the string is counted through the index, so
+ * nodes without enough common n-grams are never compared. Strings shorter than n have no n-grams; they are candidates
+ * of each other only.
+ * 
+ * @author fluri
+ * @see NGramsCalculator
+ */
+final class NGramIndex {
+
+    private int fN;
+    private double fThreshold;
+
+    private Map<String, List<Integer>> fPostings = new HashMap<String, List<Integer>>();
+    private List<Integer> fShortEntries = new ArrayList<Integer>();
+    private int[] fIds = new int[16];
+    private int[] fNGramCount = new int[16];
+    private int fSize;
+
+    /**
+     * Creates a new index.
+     * 
+     * @param n
+     *            the n in n-grams
+     * @param threshold
+     *            the similarity the candidates have to reach, has to be greater than <code>0</code>
+     */
+    NGramIndex(int n, double threshold) {
+        fN = n;
+        fThreshold = threshold;
+    }
+
+    /**
+     * Adds the string of the node with the given id. Candidates are returned in the order they are added.
+     */
+    void add(int id, String string) {
+        if (fSize == fIds.length) {
+            fIds = Arrays.copyOf(fIds, fSize * 2);
+            fNGramCount = Arrays.copyOf(fNGramCount, fSize * 2);
+        }
+        int entry = fSize++;
+        fIds[entry] = id;
+        Set<String> ngrams = ngrams(string);
+        fNGramCount[entry] = ngrams.size();
+        if (ngrams.isEmpty()) {
+            fShortEntries.add(entry);
+        }
+        for (String ngram : ngrams) {
+            List<Integer> posting = fPostings.get(ngram);
+            if (posting == null) {
+                posting = new ArrayList<Integer>();
+                fPostings.put(ngram, posting);
+            }
+            posting.add(entry);
+        }
+    }
+
+    /**
+     * Returns the ids of the nodes whose strings may reach the threshold with the given string, in the order they were
+     * added. Once all strings are added, the index may be queried concurrently, each thread with its own scratch space.
+     */
+    List<Integer> getCandidates(String string, Scratch scratch) {
+        Set<String> ngrams = ngrams(string);
+        List<Integer> result = new ArrayList<Integer>();
+        if (ngrams.isEmpty()) {
+            for (int entry : fShortEntries) {
+                result.add(fIds[entry]);
+            }
+            return result;
+        }
+        scratch.ensureCapacity(fSize);
+        int[] commonNGrams = scratch.fCommonNGrams;
+        int[] touchedEntries = scratch.fTouched;
+        int touched = 0;
+        for (String ngram : ngrams) {
+            List<Integer> posting = fPostings.get(ngram);
+            if (posting != null) {
+                for (int entry : posting) {
+                    if (commonNGrams[entry]++ == 0) {
+                        touchedEntries[touched++] = entry;
+                    }
+                }
+            }
+        }
+        Arrays.sort(touchedEntries, 0, touched);
+        for (int i = 0; i < touched; i++) {
+            int entry = touchedEntries[i];
+            // same computation as NGramsCalculator
+            int union = ngrams.size() + fNGramCount[entry];
+            if (commonNGrams[entry] * 2.0 / union >= fThreshold) {
+                result.add(fIds[entry]);
+            }
+            commonNGrams[entry] = 0;
+        }
+        return result;
+    }
+
+    private Set<String> ngrams(String string) {
+        Set<String> ngrams = new HashSet<String>();
+        for (int i = 0; i < string.length() - (fN - 1); i++) {
+            ngrams.add(string.substring(i, i + fN));
+        }
+        return ngrams;
+    }
+
+    /**
+     * Scratch space of {@link NGramIndex#getCandidates(String, Scratch)}, in which the common n-grams of the entries
+     * are counted. It can be used for any number of indexes, but only by one thread at a time.
+     */
+    static final class Scratch {
+
+        private int[] fCommonNGrams = new int[16];
+        private int[] fTouched = new int[16];
+
+        private void ensureCapacity(int capacity) {
+            if (fCommonNGrams.length < capacity) {
+                fCommonNGrams = new int[capacity * 2];
+                fTouched = new int[capacity * 2];
+            }
+        }
+    }
+}
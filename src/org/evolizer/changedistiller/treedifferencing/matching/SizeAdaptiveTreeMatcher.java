@@ -0,0 +1,194 @@
+/*
+ * Copyright 2009 University of Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.evolizer.changedistiller.treedifferencing.matching;
+
+import java.util.Set;
+
+import org.evolizer.changedistiller.treedifferencing.FlatTree;
+import org.evolizer.changedistiller.treedifferencing.ITreeMatcher;
+import org.evolizer.changedistiller.treedifferencing.Node;
+import org.evolizer.changedistiller.treedifferencing.NodePair;
+import org.evolizer.changedistiller.treedifferencing.matching.measure.INodeSimilarityCalculator;
+import org.evolizer.changedistiller.treedifferencing.matching.measure.IStringSimilarityCalculator;
+
+/**
+ * Tree matcher that chooses the matching strategy for each pair of trees by their size.
+ * 
+ * <p>
+ * The size of a pair of trees is the number of nodes of the larger one. Trees up to the small tree size are matched
+ * with the first match matcher, trees above the large tree size with the linear matcher, which compares only the leaves
+ * left over by matching subtrees, and all others with the best match matcher. The configuration is passed on to all
+ * three matchers; the strategy of the last matching is kept.
+ * 
+ * @author fluri
+ * @see MatchingFactory
+ */
+public class SizeAdaptiveTreeMatcher implements ITreeMatcher {
+
+    /**
+     * Strategies of the {@link SizeAdaptiveTreeMatcher}.
+     */
+    public enum Strategy {
+        /**
+         * Leaves are matched with the first leaf that is similar enough, as with the {@link DefaultTreeMatcher}.
+         */
+        FIRST_MATCH,
+        /**
+         * Leaves are matched with the most similar leaf, as with the {@link BestLeafTreeMatcher}.
+         */
+        BEST_MATCH,
+        /**
+         * Isomorphic subtrees are matched top-down and inner nodes by their common descendants, as with the
+         * {@link GumTreeMatcher}. Only the leaves left over are compared with each other, so the time grows about
+         * linearly with the size of the trees if few leaves change.
+         */
+        LINEAR
+    }
+
+    private ITreeMatcher fFirstMatchMatcher;
+    private ITreeMatcher fBestMatchMatcher;
+    private ITreeMatcher fLinearMatcher;
+    private int fSmallTreeSize;
+    private int fLargeTreeSize;
+
+    private Strategy fLastStrategy;
+
+    /**
+     * Creates a new size adaptive tree matcher.
+     * 
+     * @param firstMatchMatcher
+     *            matcher for trees up to the small tree size
+     * @param bestMatchMatcher
+     *            matcher for trees between the small and the large tree size
+     * @param linearMatcher
+     *            matcher for trees above the large tree size
+     * @param smallTreeSize
+     *            number of nodes up to which trees are small
+     * @param largeTreeSize
+     *            number of nodes above which trees are large
+     */
+    public SizeAdaptiveTreeMatcher(
+            ITreeMatcher firstMatchMatcher,
+            ITreeMatcher bestMatchMatcher,
+            ITreeMatcher linearMatcher,
+            int smallTreeSize,
+            int largeTreeSize) {
+        fFirstMatchMatcher = firstMatchMatcher;
+        fBestMatchMatcher = bestMatchMatcher;
+        fLinearMatcher = linearMatcher;
+        fSmallTreeSize = smallTreeSize;
+        fLargeTreeSize = largeTreeSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void init(
+            IStringSimilarityCalculator leafStringSimCalc,
+            double leafStringSimThreshold,
+            INodeSimilarityCalculator nodeSimCalc,
+            double nodeSimThreshold) {
+        fFirstMatchMatcher.init(leafStringSimCalc, leafStringSimThreshold, nodeSimCalc, nodeSimThreshold);
+        fBestMatchMatcher.init(leafStringSimCalc, leafStringSimThreshold, nodeSimCalc, nodeSimThreshold);
+        fLinearMatcher.init(leafStringSimCalc, leafStringSimThreshold, nodeSimCalc, nodeSimThreshold);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void init(
+            IStringSimilarityCalculator leafStringSimCalc,
+            double leafStringSimThreshold,
+            IStringSimilarityCalculator nodeStringSimCalc,
+            double nodeStringSimThreshold,
+            INodeSimilarityCalculator nodeSimCalc,
+            double nodeSimThreshold) {
+        fFirstMatchMatcher.init(
+                leafStringSimCalc,
+                leafStringSimThreshold,
+                nodeStringSimCalc,
+                nodeStringSimThreshold,
+                nodeSimCalc,
+                nodeSimThreshold);
+        fBestMatchMatcher.init(
+                leafStringSimCalc,
+                leafStringSimThreshold,
+                nodeStringSimCalc,
+                nodeStringSimThreshold,
+                nodeSimCalc,
+                nodeSimThreshold);
+        fLinearMatcher.init(
+                leafStringSimCalc,
+                leafStringSimThreshold,
+                nodeStringSimCalc,
+                nodeStringSimThreshold,
+                nodeSimCalc,
+                nodeSimThreshold);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void enableDynamicThreshold(int depth, double threshold) {
+        fFirstMatchMatcher.enableDynamicThreshold(depth, threshold);
+        fBestMatchMatcher.enableDynamicThreshold(depth, threshold);
+        fLinearMatcher.enableDynamicThreshold(depth, threshold);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void disableDynamicThreshold() {
+        fFirstMatchMatcher.disableDynamicThreshold();
+        fBestMatchMatcher.disableDynamicThreshold();
+        fLinearMatcher.disableDynamicThreshold();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setMatchingSet(Set<NodePair> matchingSet) {
+        fFirstMatchMatcher.setMatchingSet(matchingSet);
+        fBestMatchMatcher.setMatchingSet(matchingSet);
+        fLinearMatcher.setMatchingSet(matchingSet);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void match(Node left, Node right) {
+        int size = Math.max(FlatTree.of(left).size(), FlatTree.of(right).size());
+        if (size <= fSmallTreeSize) {
+            fLastStrategy = Strategy.FIRST_MATCH;
+            fFirstMatchMatcher.match(left, right);
+        } else if (size <= fLargeTreeSize) {
+            fLastStrategy = Strategy.BEST_MATCH;
+            fBestMatchMatcher.match(left, right);
+        } else {
+            fLastStrategy = Strategy.LINEAR;
+            fLinearMatcher.match(left, right);
+        }
+    }
+
+    /**
+     * Returns the strategy of the last matching.
+     * 
+     * @return the strategy the last pair of trees was matched with, <code>null</code> if no trees were matched yet
+     */
+    public Strategy getLastStrategy() {
+        return fLastStrategy;
+    }
+}
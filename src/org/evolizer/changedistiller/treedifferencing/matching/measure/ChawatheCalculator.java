@@ -15,34 +15,61 @@
  */
 package org.evolizer.changedistiller.treedifferencing.matching.measure;
 
-import java.util.Enumeration;
 import java.util.Set;
 
 import org.evolizer.changedistiller.model.classifiers.EntityType;
+import org.evolizer.changedistiller.treedifferencing.FlatTree;
 import org.evolizer.changedistiller.treedifferencing.Node;
+import org.evolizer.changedistiller.treedifferencing.NodeMatching;
 import org.evolizer.changedistiller.treedifferencing.NodePair;
 
 /**
  * Implementation of the default inner node similarity calculator proposed by Chawathe.
  * 
+ * <p>
+ * If the leaf match set is a {@link NodeMatching}, the common leaves are counted with a {@link MatchedLeafIndex} over
+ * the {@link FlatTree}s of the nodes instead of scanning the whole match set. The index is rebuilt when pairs of
+ * leaves are added to or removed from the matching, or when one of the trees changes.
+ * 
  * @author fluri
  * 
  */
 public class ChawatheCalculator implements INodeSimilarityCalculator {
 
     private Set<? extends NodePair> fLeafMatchSet;
+    private volatile MatchedLeafIndex fIndex;
 
     /**
      * {@inheritDoc}
      */
     public void setLeafMatchSet(Set<? extends NodePair> leafMatchSet) {
         fLeafMatchSet = leafMatchSet;
+        fIndex = null;
+    }
+
+    /**
+     * Returns the set of matched leaves the similarity is calculated from.
+     * 
+     * @return the leaf match set
+     */
+    public Set<? extends NodePair> getLeafMatchSet() {
+        return fLeafMatchSet;
     }
 
     /**
      * {@inheritDoc}
      */
     public double calculateSimilarity(Node left, Node right) {
+        if (fLeafMatchSet instanceof NodeMatching) {
+            FlatTree leftTree = FlatTree.containing(left);
+            FlatTree rightTree = FlatTree.containing(right);
+            MatchedLeafIndex index = getIndex(leftTree, rightTree, (NodeMatching) fLeafMatchSet);
+            int x = leftTree.indexOf(left);
+            int y = rightTree.indexOf(right);
+            int common = index.countCommonLeaves(x, y);
+            int max = Math.max(index.countLeftStatements(x), index.countRightStatements(y));
+            return (double) common / (double) max;
+        }
         int common = 0;
         // common(x, y) = {(w, z) in M | x contains w, and y contains z}
         // |common|
@@ -58,26 +85,25 @@ public class ChawatheCalculator implements INodeSimilarityCalculator {
         return (double) common / (double) max;
     }
 
-    private int maxLeafStatements(Node left, Node right) {
-        int leftLeafStatements = left.getLeafCount() - numberOfCommentNodes(left);
-        int rightLeafStatements = right.getLeafCount() - numberOfCommentNodes(right);
-
-        return Math.max(leftLeafStatements, rightLeafStatements);
-    }
-
-    @SuppressWarnings("unchecked")
-    private int numberOfCommentNodes(Node node) {
-        int count = 0;
-
-        Enumeration<Node> nodes = node.breadthFirstEnumeration();
-        while (nodes.hasMoreElements()) {
-            Node child = nodes.nextElement();
-            if (isComment(child)) {
-                count++;
+    private MatchedLeafIndex getIndex(FlatTree leftTree, FlatTree rightTree, NodeMatching matching) {
+        MatchedLeafIndex index = fIndex;
+        if ((index == null) || !index.isValid(leftTree, rightTree, matching)) {
+            synchronized (this) {
+                index = fIndex;
+                if ((index == null) || !index.isValid(leftTree, rightTree, matching)) {
+                    index = new MatchedLeafIndex(leftTree, rightTree, matching);
+                    fIndex = index;
+                }
             }
         }
+        return index;
+    }
+
+    private int maxLeafStatements(Node left, Node right) {
+        int leftLeafStatements = left.getLeafCount() - left.getCommentCount();
+        int rightLeafStatements = right.getLeafCount() - right.getCommentCount();
 
-        return count;
+        return Math.max(leftLeafStatements, rightLeafStatements);
     }
 
     private boolean isComment(Node node) {
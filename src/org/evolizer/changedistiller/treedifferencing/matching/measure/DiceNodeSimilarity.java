@@ -15,7 +15,6 @@
  */
 package org.evolizer.changedistiller.treedifferencing.matching.measure;
 
-import java.util.Enumeration;
 import java.util.Set;
 
 import org.evolizer.changedistiller.treedifferencing.Node;
@@ -69,21 +68,8 @@ public class DiceNodeSimilarity implements INodeSimilarityCalculator {
                 && (fStringSimilarity.calculateSimilarity(left.getValue(), right.getValue()) >= fStringThreshold)) {
             intersection++;
         }
-        int union = countNodes(left) + countNodes(right);
+        int union = left.getSubtreeSize() + right.getSubtreeSize();
         return (double) 2 * intersection / union;
     }
 
-    @SuppressWarnings("unchecked")
-    private int countNodes(Node node) {
-        if (node.isLeaf()) {
-            return 1;
-        } else {
-            int count = 1;
-            for (Enumeration e = node.children(); e.hasMoreElements();) {
-                count += countNodes((Node) e.nextElement());
-            }
-            return count;
-        }
-    }
-
 }
@@ -18,6 +18,7 @@ package org.evolizer.changedistiller.treedifferencing.matching.measure;
 import java.util.Set;
 
 import org.evolizer.changedistiller.treedifferencing.Node;
+import org.evolizer.changedistiller.treedifferencing.NodeMatching;
 import org.evolizer.changedistiller.treedifferencing.NodePair;
 
 /**
@@ -40,7 +41,8 @@ public interface INodeSimilarityCalculator {
     double calculateSimilarity(Node left, Node right);
 
     /**
-     * Sets the matching set of leafs in case the similarity calculator needs these information.
+     * Sets the matching set of leafs in case the similarity calculator needs these information. The set may be a
+     * {@link NodeMatching}.
      * 
      * @param leafMatchSet
      *            the matching set of leafs
@@ -41,4 +41,51 @@ public interface IStringSimilarityCalculator {
      */
     double calculateSimilarity(String left, String right);
 
+    /**
+     * Returns the profile of a string, which holds what this calculator needs of the string to calculate its
+     * similarity, such as its ngrams or tokens. A string that is compared with many others is prepared once. Profiles
+     * are immutable and can be shared between threads.
+     * 
+     * @param string
+     *            to prepare the profile of
+     * @return the profile of the string
+     */
+    Object prepareProfile(String string);
+
+    /**
+     * Returns the similarity between the strings of two profiles prepared by this calculator, which is the similarity
+     * {@link #calculateSimilarity(String, String)} returns for them.
+     * 
+     * @param leftProfile
+     *            to calculate the similarity with right
+     * @param rightProfile
+     *            to calculate the similarity with left
+     * @return the similarity between the strings of the two profiles
+     */
+    double calculateProfileSimilarity(Object leftProfile, Object rightProfile);
+
+    /**
+     * Calculates the similarities between the string of one profile and the strings of several others, all prepared
+     * by this calculator. What the calculator needs of the one string is set up once for all others. Similarities of
+     * at least the threshold are the ones {@link #calculateProfileSimilarity(Object, Object)} returns; of lower ones,
+     * it is only known that they are below the threshold.
+     * 
+     * @param leftProfile
+     *            to calculate the similarities with the right profiles
+     * @param rightProfiles
+     *            to calculate the similarities with the left profile
+     * @param count
+     *            of right profiles, from the start of the array
+     * @param threshold
+     *            from which on the similarities are of interest
+     * @param similarities
+     *            filled with the similarity between the left profile and each right profile at its index
+     */
+    void calculateProfileSimilarities(
+            Object leftProfile,
+            Object[] rightProfiles,
+            int count,
+            double threshold,
+            double[] similarities);
+
 }
@@ -15,26 +15,438 @@
  */
 package org.evolizer.changedistiller.treedifferencing.matching.measure;
 
-import simpack.accessor.string.StringAccessor;
-import simpack.measure.sequence.Levenshtein;
+import java.util.Arrays;
 
 /**
  * Implementation of the Levenshtein similarity measure.
  * 
+ * <p>
+ * The similarity is the share of the length of the longer string that is left after subtracting the edit distance.
+ * The common prefix and suffix of the strings are skipped; the edit distance of the rest is calculated with the
+ * bit-parallel algorithm of Myers in the formulation of Hyyr&ouml;, in one word if the shorter string has up to
+ * <code>64</code> chars and in blocks of words otherwise. With a similarity threshold, the calculation stops as soon as
+ * the threshold cannot be reached anymore; long strings with a narrow band of reachable cells are then calculated
+ * with a banded dynamic program. The buffers of the calling thread are reused by the next calculation.
+ * 
  * @author fluri
  * 
  */
 public class LevenshteinCalculator implements IStringSimilarityCalculator {
 
+    private static final int WORD_SIZE = Long.SIZE;
+
+    // a word of the blocked bit vectors costs about as much as this many cells of the band
+    private static final int BAND_CELLS_PER_WORD = 16;
+
+    private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
     /**
      * {@inheritDoc}
      */
     public double calculateSimilarity(String left, String right) {
-        if (left.equals("") && right.equals("")) {
+        return calculateSimilarity(left, right, 0.0);
+    }
+
+    /**
+     * Returns the similarity between two strings if it reaches the threshold.
+     * 
+     * <p>
+     * The edit distance is only calculated up to the largest distance that still gives the threshold, so pairs of
+     * strings that are far from it are rejected early.
+     * 
+     * @param left
+     *            to calculate the similarity with right
+     * @param right
+     *            to calculate the similarity with left
+     * @param threshold
+     *            the similarity of interest
+     * @return the similarity between the two strings if it is at least the threshold, an upper bound of it below the
+     *         threshold otherwise
+     */
+    public double calculateSimilarity(String left, String right, double threshold) {
+        if (left.equals(right)) {
             return 1.0;
         }
-        Levenshtein<String> lm = new Levenshtein<String>(new StringAccessor(left), new StringAccessor(right));
-        return lm.getSimilarity();
+        int length = Math.max(left.length(), right.length());
+        int maxDistance = getMaxDistance(length, threshold);
+        int distance = maxDistance < 0 ? 0 : calculateDistance(left, right, maxDistance);
+        return (double) (length - distance) / length;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * The profile of a string is the string itself.
+     */
+    public Object prepareProfile(String string) {
+        return string;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double calculateProfileSimilarity(Object leftProfile, Object rightProfile) {
+        return calculateSimilarity((String) leftProfile, (String) rightProfile);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * The match vectors of the left string are prepared once; each right string is then run through them, stopping as
+     * soon as the threshold cannot be reached anymore.
+     */
+    public void calculateProfileSimilarities(
+            Object leftProfile,
+            Object[] rightProfiles,
+            int count,
+            double threshold,
+            double[] similarities) {
+        String left = (String) leftProfile;
+        int n = left.length();
+        int blocks = Math.max(1, (n + WORD_SIZE - 1) / WORD_SIZE);
+        Buffers buffers = BUFFERS.get();
+        buffers.prepare(left, 0, n, blocks);
+        try {
+            for (int i = 0; i < count; i++) {
+                String right = (String) rightProfiles[i];
+                if (left.equals(right)) {
+                    similarities[i] = 1.0;
+                    continue;
+                }
+                int length = Math.max(n, right.length());
+                int maxDistance = getMaxDistance(length, threshold);
+                int distance;
+                if (maxDistance < 0) {
+                    distance = 0;
+                } else if (Math.abs(n - right.length()) > maxDistance) {
+                    distance = maxDistance + 1;
+                } else if (n == 0) {
+                    distance = right.length();
+                } else if (blocks == 1) {
+                    distance = calculateWordDistance(buffers, right, 0, right.length(), n, maxDistance);
+                } else {
+                    distance = calculateBlockedDistance(buffers, right, 0, right.length(), n, blocks, maxDistance);
+                }
+                similarities[i] = (double) (length - distance) / length;
+            }
+        } finally {
+            buffers.clear();
+        }
+    }
+
+    /**
+     * Returns the largest edit distance between strings of which the longer has the given length that gives the
+     * threshold, <code>-1</code> if none does.
+     */
+    private static int getMaxDistance(int length, double threshold) {
+        int result = (int) Math.max(-1.0, Math.min(length, Math.floor(length * (1.0 - threshold))));
+        // the rounding of the similarity decides, not the rounding of the estimate
+        while ((result >= 0) && ((double) (length - result) / length < threshold)) {
+            result--;
+        }
+        while ((result < length) && ((double) (length - result - 1) / length >= threshold)) {
+            result++;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the edit distance between the strings if it is at most the maximum distance, the maximum distance plus
+     * one otherwise.
+     */
+    private static int calculateDistance(String left, String right, int maxDistance) {
+        String shorter = left.length() <= right.length() ? left : right;
+        String longer = shorter == left ? right : left;
+        int shorterEnd = shorter.length();
+        int longerEnd = longer.length();
+        if (longerEnd - shorterEnd > maxDistance) {
+            return maxDistance + 1;
+        }
+        int start = 0;
+        while ((start < shorterEnd) && (shorter.charAt(start) == longer.charAt(start))) {
+            start++;
+        }
+        while ((shorterEnd > start) && (shorter.charAt(shorterEnd - 1) == longer.charAt(longerEnd - 1))) {
+            shorterEnd--;
+            longerEnd--;
+        }
+        int n = shorterEnd - start;
+        if (n == 0) {
+            return longerEnd - start;
+        }
+        Buffers buffers = BUFFERS.get();
+        int blocks = (n + WORD_SIZE - 1) / WORD_SIZE;
+        int diagonals = longerEnd - shorterEnd;
+        int bandWidth = diagonals + (maxDistance - diagonals) / 2 * 2 + 1;
+        if ((blocks > 1) && (bandWidth < blocks * BAND_CELLS_PER_WORD)) {
+            return calculateBandedDistance(buffers, shorter, longer, start, shorterEnd, longerEnd, maxDistance);
+        }
+        buffers.prepare(shorter, start, shorterEnd, blocks);
+        try {
+            if (blocks == 1) {
+                return calculateWordDistance(buffers, longer, start, longerEnd, n, maxDistance);
+            }
+            return calculateBlockedDistance(buffers, longer, start, longerEnd, n, blocks, maxDistance);
+        } finally {
+            buffers.clear();
+        }
+    }
+
+    /**
+     * Myers' algorithm for a pattern of up to one word. The vertical deltas of the column are kept in the bit vectors
+     * <code>pv</code> and <code>mv</code>; the score is the distance of the whole pattern to the text so far, which
+     * shrinks by at most one per remaining char of the text.
+     */
+    private static int calculateWordDistance(
+            Buffers buffers,
+            String text,
+            int start,
+            int end,
+            int n,
+            int maxDistance) {
+        long last = 1L << (n - 1);
+        long pv = -1L;
+        long mv = 0L;
+        int score = n;
+        for (int j = start; j < end; j++) {
+            long eq = buffers.getPeq(text.charAt(j), 0);
+            long xv = eq | mv;
+            long xh = (((eq & pv) + pv) ^ pv) | eq;
+            long ph = mv | ~(xh | pv);
+            long mh = pv & xh;
+            if ((ph & last) != 0) {
+                score++;
+            } else if ((mh & last) != 0) {
+                score--;
+            }
+            ph = (ph << 1) | 1L;
+            mh <<= 1;
+            pv = mh | ~(xv | ph);
+            mv = ph & xv;
+            if (score - (end - j - 1) > maxDistance) {
+                return maxDistance + 1;
+            }
+        }
+        return score;
     }
 
+    /**
+     * Myers' algorithm for a pattern of several words, which passes the horizontal delta of the last row of each block
+     * on to the next block.
+     */
+    private static int calculateBlockedDistance(
+            Buffers buffers,
+            String text,
+            int start,
+            int end,
+            int n,
+            int blocks,
+            int maxDistance) {
+        long[] pvs = buffers.getVectors(0, blocks);
+        long[] mvs = buffers.getVectors(1, blocks);
+        Arrays.fill(pvs, 0, blocks, -1L);
+        Arrays.fill(mvs, 0, blocks, 0L);
+        long last = 1L << ((n - 1) % WORD_SIZE);
+        int score = n;
+        for (int j = start; j < end; j++) {
+            int index = buffers.indexOf(text.charAt(j));
+            int carry = 1;
+            for (int block = 0; block < blocks; block++) {
+                long eq = index < 0 ? 0L : buffers.fPeqs[index * blocks + block];
+                long pv = pvs[block];
+                long mv = mvs[block];
+                long xv = eq | mv;
+                if (carry < 0) {
+                    eq |= 1L;
+                }
+                long xh = (((eq & pv) + pv) ^ pv) | eq;
+                long ph = mv | ~(xh | pv);
+                long mh = pv & xh;
+                long high = block == blocks - 1 ? last : Long.MIN_VALUE;
+                int out = 0;
+                if ((ph & high) != 0) {
+                    out = 1;
+                } else if ((mh & high) != 0) {
+                    out = -1;
+                }
+                ph <<= 1;
+                mh <<= 1;
+                if (carry < 0) {
+                    mh |= 1L;
+                } else if (carry > 0) {
+                    ph |= 1L;
+                }
+                pvs[block] = mh | ~(xv | ph);
+                mvs[block] = ph & xv;
+                carry = out;
+            }
+            score += carry;
+            if (score - (end - j - 1) > maxDistance) {
+                return maxDistance + 1;
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Dynamic program over the diagonals on which a cell can lie on a path of at most the maximum distance, which is
+     * the distance to the diagonal plus the distance from it to the diagonal of the last cell. Cells outside of the
+     * band count as the maximum distance plus one.
+     */
+    private static int calculateBandedDistance(
+            Buffers buffers,
+            String shorter,
+            String longer,
+            int start,
+            int shorterEnd,
+            int longerEnd,
+            int maxDistance) {
+        int n = shorterEnd - start;
+        int m = longerEnd - start;
+        int lower = -((maxDistance - (m - n)) / 2);
+        int upper = (m - n) + (maxDistance - (m - n)) / 2;
+        int width = upper - lower + 1;
+        int infinity = maxDistance + 1;
+        int[] previous = buffers.getRow(0, width);
+        int[] current = buffers.getRow(1, width);
+        for (int index = 0; index < width; index++) {
+            int j = lower + index;
+            previous[index] = ((j < 0) || (j > m)) ? infinity : Math.min(j, infinity);
+        }
+        for (int i = 1; i <= n; i++) {
+            char c = shorter.charAt(start + i - 1);
+            int rowMin = infinity;
+            for (int index = 0; index < width; index++) {
+                int j = i + lower + index;
+                int value;
+                if ((j < 0) || (j > m)) {
+                    value = infinity;
+                } else if (j == 0) {
+                    value = Math.min(i, infinity);
+                } else {
+                    value = previous[index] + (c == longer.charAt(start + j - 1) ? 0 : 1);
+                    if (index + 1 < width) {
+                        value = Math.min(value, previous[index + 1] + 1);
+                    }
+                    if (index > 0) {
+                        value = Math.min(value, current[index - 1] + 1);
+                    }
+                    value = Math.min(value, infinity);
+                }
+                current[index] = value;
+                rowMin = Math.min(rowMin, value);
+            }
+            if (rowMin > maxDistance) {
+                return infinity;
+            }
+            int[] row = previous;
+            previous = current;
+            current = row;
+        }
+        return previous[m - n - lower];
+    }
+
+    /**
+     * Buffers of a thread: the match vectors of the pattern chars in an open addressing table, the bit vectors of the
+     * blocks, and the rows of the band.
+     */
+    private static final class Buffers {
+
+        // chars plus one, zero marks a free slot
+        private int[] fKeys = new int[128];
+        private int[] fIndexes = new int[128];
+        private int[] fSlots = new int[64];
+        private int fMask;
+        private int fChars;
+        private int fBlocks;
+        private long[] fPeqs = new long[64];
+        private long[][] fVectors = {new long[4], new long[4]};
+        private int[][] fRows = {new int[64], new int[64]};
+
+        /**
+         * Fills the match vectors of the chars of the pattern, one bit per position in blocks of words.
+         */
+        void prepare(String pattern, int start, int end, int blocks) {
+            int capacity = Integer.highestOneBit(Math.max(64, Math.min(end - start, 1 << Character.SIZE)) * 2);
+            if (fKeys.length < capacity) {
+                fKeys = new int[capacity];
+                fIndexes = new int[capacity];
+            }
+            fMask = capacity - 1;
+            fChars = 0;
+            fBlocks = blocks;
+            for (int i = start; i < end; i++) {
+                char c = pattern.charAt(i);
+                int slot = c & fMask;
+                while ((fKeys[slot] != 0) && (fKeys[slot] != c + 1)) {
+                    slot = (slot + 1) & fMask;
+                }
+                if (fKeys[slot] == 0) {
+                    if (fSlots.length == fChars) {
+                        fSlots = Arrays.copyOf(fSlots, fChars * 2);
+                    }
+                    if (fPeqs.length < (fChars + 1) * blocks) {
+                        fPeqs = Arrays.copyOf(fPeqs, Math.max((fChars + 1) * blocks, fPeqs.length * 2));
+                    }
+                    fKeys[slot] = c + 1;
+                    fIndexes[slot] = fChars;
+                    fSlots[fChars++] = slot;
+                }
+                int position = i - start;
+                fPeqs[fIndexes[slot] * blocks + position / WORD_SIZE] |= 1L << (position % WORD_SIZE);
+            }
+        }
+
+        /**
+         * Returns the index of the match vectors of the char, <code>-1</code> if it is not in the pattern.
+         */
+        int indexOf(char c) {
+            int slot = c & fMask;
+            while (fKeys[slot] != 0) {
+                if (fKeys[slot] == c + 1) {
+                    return fIndexes[slot];
+                }
+                slot = (slot + 1) & fMask;
+            }
+            return -1;
+        }
+
+        long getPeq(char c, int block) {
+            int index = indexOf(c);
+            return index < 0 ? 0L : fPeqs[index * fBlocks + block];
+        }
+
+        long[] getVectors(int which, int size) {
+            if (fVectors[which].length < size) {
+                fVectors[which] = new long[Math.max(size, fVectors[which].length * 2)];
+            }
+            return fVectors[which];
+        }
+
+        int[] getRow(int which, int size) {
+            if (fRows[which].length < size) {
+                fRows[which] = new int[Math.max(size, fRows[which].length * 2)];
+            }
+            return fRows[which];
+        }
+
+        /**
+         * Frees the slots and match vectors of the pattern for the next one.
+         */
+        void clear() {
+            for (int i = 0; i < fChars; i++) {
+                fKeys[fSlots[i]] = 0;
+            }
+            Arrays.fill(fPeqs, 0, fChars * fBlocks, 0L);
+            fChars = 0;
+        }
+    }
 }
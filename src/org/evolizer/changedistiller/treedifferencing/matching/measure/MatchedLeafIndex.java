@@ -0,0 +1,165 @@
+/*
+ * Copyright 2009 University of Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.evolizer.changedistiller.treedifferencing.matching.measure;
+
+import java.util.Arrays;
+
+import org.evolizer.changedistiller.model.classifiers.EntityType;
+import org.evolizer.changedistiller.treedifferencing.FlatTree;
+import org.evolizer.changedistiller.treedifferencing.NodeMatching;
+import org.evolizer.changedistiller.treedifferencing.NodePair;
+
+/**
+ * Index of the matched leaves of a left and a right {@link FlatTree} that are no comments, by their ids.
+ * 
+ * <p>
+ * The subtree of a node is an interval of ids, so the number of matched leaves in the subtree of a left node whose
+ * partners are in the subtree of a right node is a count of points in a rectangle. The pairs are sorted by the id of
+ * the left leaf, and a merge sort tree over the ids of the right leaves counts them in <code>O(log^2 n)</code>.
+ * The index is immutable and reflects the matching and the trees at the time it was built.
+ * 
+ * @author fluri
+ * @see ChawatheCalculator
+ */
+final class MatchedLeafIndex {
+
+    private static final int[] NO_LEAVES = new int[0];
+
+    private FlatTree fLeftTree;
+    private FlatTree fRightTree;
+    private NodeMatching fMatching;
+    private int fModificationCount;
+
+    private int[] fLeftLeaves;
+    private int fCapacity;
+    private int[][] fRightLeaves;
+
+    MatchedLeafIndex(FlatTree leftTree, FlatTree rightTree, NodeMatching matching) {
+        fLeftTree = leftTree;
+        fRightTree = rightTree;
+        fMatching = matching;
+        fModificationCount = matching.getLeafModificationCount();
+
+        long[] pairs = new long[matching.size()];
+        int size = 0;
+        for (NodePair pair : matching) {
+            int left = leftTree.indexOf(pair.getLeft());
+            int right = rightTree.indexOf(pair.getRight());
+            if ((left != FlatTree.NO_NODE) && (right != FlatTree.NO_NODE) && isStatement(leftTree, left)
+                    && isStatement(rightTree, right)) {
+                pairs[size++] = ((long) left << 32) | right;
+            }
+        }
+        Arrays.sort(pairs, 0, size);
+
+        fLeftLeaves = new int[size];
+        fCapacity = Integer.highestOneBit(Math.max(1, size) * 2 - 1);
+        fRightLeaves = new int[fCapacity * 2][];
+        for (int i = 0; i < fCapacity; i++) {
+            if (i < size) {
+                fLeftLeaves[i] = (int) (pairs[i] >>> 32);
+                fRightLeaves[fCapacity + i] = new int[]{(int) pairs[i]};
+            } else {
+                fRightLeaves[fCapacity + i] = NO_LEAVES;
+            }
+        }
+        for (int i = fCapacity - 1; i > 0; i--) {
+            fRightLeaves[i] = merge(fRightLeaves[2 * i], fRightLeaves[2 * i + 1]);
+        }
+    }
+
+    /**
+     * Returns whether the index still reflects the given trees and matching.
+     */
+    boolean isValid(FlatTree leftTree, FlatTree rightTree, NodeMatching matching) {
+        return (leftTree == fLeftTree) && (rightTree == fRightTree) && (matching == fMatching)
+                && leftTree.isValid() && rightTree.isValid()
+                && (matching.getLeafModificationCount() == fModificationCount);
+    }
+
+    /**
+     * Returns the number of matched leaves in the subtree of the left node whose partners are in the subtree of the
+     * right node, the leaves that are comments not counted.
+     */
+    int countCommonLeaves(int left, int right) {
+        int from = lowerBound(fLeftLeaves, 0, fLeftLeaves.length, left);
+        int to = lowerBound(fLeftLeaves, from, fLeftLeaves.length, left + fLeftTree.getSubtreeSize(left));
+        int min = right;
+        int max = right + fRightTree.getSubtreeSize(right);
+        int result = 0;
+        for (int a = from + fCapacity, b = to + fCapacity; a < b; a >>= 1, b >>= 1) {
+            if ((a & 1) == 1) {
+                result += count(fRightLeaves[a++], min, max);
+            }
+            if ((b & 1) == 1) {
+                result += count(fRightLeaves[--b], min, max);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of leaves in the subtree of the left node minus the number of comments in it.
+     */
+    int countLeftStatements(int left) {
+        return fLeftTree.getLeafCount(left) - fLeftTree.getCommentCount(left);
+    }
+
+    /**
+     * Returns the number of leaves in the subtree of the right node minus the number of comments in it.
+     */
+    int countRightStatements(int right) {
+        return fRightTree.getLeafCount(right) - fRightTree.getCommentCount(right);
+    }
+
+    private static boolean isStatement(FlatTree tree, int id) {
+        return tree.isLeaf(id) && !isComment(tree, id);
+    }
+
+    private static boolean isComment(FlatTree tree, int id) {
+        EntityType label = tree.getNode(id).getLabel();
+        return (label == EntityType.JAVADOC) || (label == EntityType.BLOCK_COMMENT)
+                || (label == EntityType.LINE_COMMENT);
+    }
+
+    private static int[] merge(int[] left, int[] right) {
+        int[] result = new int[left.length + right.length];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < result.length; k++) {
+            result[k] = ((j == right.length) || ((i < left.length) && (left[i] <= right[j]))) ? left[i++] : right[j++];
+        }
+        return result;
+    }
+
+    private static int count(int[] sorted, int min, int max) {
+        return lowerBound(sorted, 0, sorted.length, max) - lowerBound(sorted, 0, sorted.length, min);
+    }
+
+    private static int lowerBound(int[] sorted, int from, int to, int key) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -15,16 +15,33 @@
  */
 package org.evolizer.changedistiller.treedifferencing.matching.measure;
 
+import java.util.Arrays;
 import java.util.HashSet;
 
 /**
  * Implementation of the ngrams similarity measure.
  * 
+ * <p>
+ * For n up to <code>4</code>, the ngrams of a string are packed into longs of 16 bits per char, sorted, and made
+ * distinct in buffers of the calling thread, which are reused by the next calculation; the number of common ngrams is
+ * counted by merging them. This gives the similarity of the sets of ngram strings without allocating them. Longer
+ * ngrams are collected in sets of strings.
+ * 
  * @author fluri
  * 
  */
 public class NGramsCalculator implements IStringSimilarityCalculator {
 
+    private static final int MAX_PACKED_N = 4;
+
+    private static final ThreadLocal<long[][]> BUFFERS = new ThreadLocal<long[][]>() {
+
+        @Override
+        protected long[][] initialValue() {
+            return new long[][]{new long[64], new long[64]};
+        }
+    };
+
     private int fN;
 
     /**
@@ -52,11 +69,164 @@ public class NGramsCalculator implements IStringSimilarityCalculator {
         fN = n;
     }
 
+    /**
+     * Returns the n in ngrams.
+     * 
+     * @return the n in ngrams
+     */
+    public int getN() {
+        return fN;
+    }
+
     /**
      * {@inheritDoc}
      */
     public double calculateSimilarity(String left, String right) {
-        return left.equals(right) ? 1.0 : getSimilarity(ngrams(left), ngrams(right));
+        if (left.equals(right)) {
+            return 1.0;
+        }
+        if ((fN < 0) || (fN > MAX_PACKED_N)) {
+            return getSimilarity(ngrams(left), ngrams(right));
+        }
+        long[][] buffers = BUFFERS.get();
+        if (buffers[0].length < left.length() + 1) {
+            buffers[0] = new long[Math.max(left.length() + 1, buffers[0].length * 2)];
+        }
+        if (buffers[1].length < right.length() + 1) {
+            buffers[1] = new long[Math.max(right.length() + 1, buffers[1].length * 2)];
+        }
+        int leftSize = packedNGrams(left, buffers[0]);
+        int rightSize = packedNGrams(right, buffers[1]);
+        return countCommon(buffers[0], leftSize, buffers[1], rightSize) * 2.0 / (leftSize + rightSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * The profile of a string holds its distinct ngrams for the current n; profiles prepared before n changed are
+     * compared by their strings.
+     */
+    public Object prepareProfile(String string) {
+        Profile profile = new Profile();
+        profile.fString = string;
+        profile.fN = fN;
+        if ((fN < 0) || (fN > MAX_PACKED_N)) {
+            profile.fNGrams = ngrams(string);
+        } else {
+            long[] buffer = new long[string.length() + 1];
+            profile.fPackedNGrams = Arrays.copyOf(buffer, packedNGrams(string, buffer));
+        }
+        return profile;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double calculateProfileSimilarity(Object leftProfile, Object rightProfile) {
+        Profile left = (Profile) leftProfile;
+        Profile right = (Profile) rightProfile;
+        if ((left.fN != fN) || (right.fN != fN)) {
+            return calculateSimilarity(left.fString, right.fString);
+        }
+        if (left.fString.equals(right.fString)) {
+            return 1.0;
+        }
+        if (left.fPackedNGrams != null) {
+            int leftSize = left.fPackedNGrams.length;
+            int rightSize = right.fPackedNGrams.length;
+            return countCommon(left.fPackedNGrams, leftSize, right.fPackedNGrams, rightSize) * 2.0
+                    / (leftSize + rightSize);
+        }
+        int intersection = 0;
+        for (String ngram : left.fNGrams) {
+            if (right.fNGrams.contains(ngram)) {
+                intersection++;
+            }
+        }
+        return intersection * 2.0 / (left.fNGrams.size() + right.fNGrams.size());
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * The packed ngrams of the left profile are merged with those of each right profile in turn.
+     */
+    public void calculateProfileSimilarities(
+            Object leftProfile,
+            Object[] rightProfiles,
+            int count,
+            double threshold,
+            double[] similarities) {
+        Profile left = (Profile) leftProfile;
+        if ((left.fN != fN) || (left.fPackedNGrams == null)) {
+            for (int i = 0; i < count; i++) {
+                similarities[i] = calculateProfileSimilarity(left, rightProfiles[i]);
+            }
+            return;
+        }
+        long[] leftNGrams = left.fPackedNGrams;
+        for (int i = 0; i < count; i++) {
+            Profile right = (Profile) rightProfiles[i];
+            if (right.fN != fN) {
+                similarities[i] = calculateSimilarity(left.fString, right.fString);
+            } else if (left.fString.equals(right.fString)) {
+                similarities[i] = 1.0;
+            } else {
+                long[] rightNGrams = right.fPackedNGrams;
+                similarities[i] = countCommon(leftNGrams, leftNGrams.length, rightNGrams, rightNGrams.length) * 2.0
+                        / (leftNGrams.length + rightNGrams.length);
+            }
+        }
+    }
+
+    private static int countCommon(long[] left, int leftSize, long[] right, int rightSize) {
+        int result = 0;
+        int i = 0;
+        int j = 0;
+        while ((i < leftSize) && (j < rightSize)) {
+            if (left[i] < right[j]) {
+                i++;
+            } else if (left[i] > right[j]) {
+                j++;
+            } else {
+                result++;
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes the distinct packed ngrams of the string in ascending order to the buffer and returns their number.
+     */
+    private int packedNGrams(String fullString, long[] buffer) {
+        int count = fullString.length() - (fN - 1);
+        if (count <= 0) {
+            return 0;
+        }
+        long mask = (fN == MAX_PACKED_N) ? -1L : (1L << (Character.SIZE * fN)) - 1;
+        long ngram = 0;
+        for (int i = 0; i < fullString.length(); i++) {
+            ngram = ((ngram << Character.SIZE) | fullString.charAt(i)) & mask;
+            if (i >= fN - 1) {
+                buffer[i - (fN - 1)] = ngram;
+            }
+        }
+        if (fN == 0) {
+            // the empty ngram, once per position and after the last char
+            Arrays.fill(buffer, 0, count, 0);
+        }
+        Arrays.sort(buffer, 0, count);
+        int size = 1;
+        for (int i = 1; i < count; i++) {
+            if (buffer[i] != buffer[size - 1]) {
+                buffer[size++] = buffer[i];
+            }
+        }
+        return size;
     }
 
     private double getSimilarity(HashSet<String> left, HashSet<String> right) {
@@ -75,4 +245,14 @@ public class NGramsCalculator implements IStringSimilarityCalculator {
         return ngrams;
     }
 
+    /**
+     * Profile of a string, with its packed ngrams for n up to <code>4</code> and its ngram strings otherwise.
+     */
+    private static final class Profile {
+
+        private String fString;
+        private int fN;
+        private long[] fPackedNGrams;
+        private HashSet<String> fNGrams;
+    }
 }
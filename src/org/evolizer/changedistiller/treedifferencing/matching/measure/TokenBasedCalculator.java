@@ -15,17 +15,54 @@
  */
 package org.evolizer.changedistiller.treedifferencing.matching.measure;
 
-import java.util.Hashtable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
 
 /**
  * Implementation of a token based string similarity calculator.
  * 
+ * <p>
+ * Comment delimiters are removed and whitespace separated tokens are split in one pass over the chars, into buffers of
+ * the calling thread. The tokens of the left string are counted in an open addressing table by their hash, which the
+ * tokens of the right string are looked up in without creating strings for them.
+ * 
  * @author fluri
  * 
  */
 public class TokenBasedCalculator implements IStringSimilarityCalculator {
 
-    private String fSeparator;
+    // the kinds of strings that are tokenized differently: no comment, line comment, block comment
+    private static final int NO_COMMENT = 0;
+    private static final int LINE_COMMENT = 1;
+    private static final int BLOCK_COMMENT = 2;
+
+    private static final String WHITESPACE = "\\s+";
+
+    // tokens by their hash and tokens with equal hashes by their natural order
+    private static final Comparator<String> HASH_ORDER = new Comparator<String>() {
+
+        public int compare(String left, String right) {
+            int leftHash = left.hashCode();
+            int rightHash = right.hashCode();
+            if (leftHash != rightHash) {
+                return leftHash < rightHash ? -1 : 1;
+            }
+            return left.compareTo(right);
+        }
+    };
+
+    private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    // null for whitespace, which is split without regular expressions
+    private Pattern fSeparator;
 
     /**
      * Creates a new token based similarity calculator.
@@ -34,7 +71,9 @@ public class TokenBasedCalculator implements IStringSimilarityCalculator {
      *            with which the tokens in the strings are separated
      */
     public TokenBasedCalculator(String separator) {
-        fSeparator = separator;
+        if (!separator.equals(WHITESPACE)) {
+            fSeparator = Pattern.compile(separator);
+        }
     }
 
     /**
@@ -42,88 +81,430 @@ public class TokenBasedCalculator implements IStringSimilarityCalculator {
      * 
      */
     public TokenBasedCalculator() {
-        this("\\s+");
+        this(WHITESPACE);
     }
 
     /**
      * {@inheritDoc}
      */
     public double calculateSimilarity(String left, String right) {
-        String leftString = left;
-        String rightString = right;
-        if (leftString.subSequence(0, 2).equals("//")) {
-            String splitRegex = "//\\s*";
-            String[] leftTmp = leftString.split(splitRegex);
-            String[] rightTmp = rightString.split(splitRegex);
-            leftString = "";
-            rightString = "";
-            for (String s : leftTmp) {
-                leftString += s;
-            }
-            for (String s : rightTmp) {
-                rightString += s;
-            }
-        } else if (leftString.subSequence(0, 2).equals("/*")) {
-            String splitRegex = "/\\*+\\s*";
-            String[] leftTmp = leftString.split(splitRegex);
-            String[] rightTmp = rightString.split(splitRegex);
-            leftString = "";
-            rightString = "";
-            for (String s : leftTmp) {
-                leftString += s;
-            }
-            for (String s : rightTmp) {
-                rightString += s;
-            }
-
-            splitRegex = "\\s*\\*/";
-            try {
-                leftString = leftString.split(splitRegex)[0];
-            } catch (ArrayIndexOutOfBoundsException e) {
-                leftString = leftString.replace('/', ' ');
-            }
-            try {
-                rightString = rightString.split(splitRegex)[0];
-            } catch (ArrayIndexOutOfBoundsException e) {
-                rightString = rightString.replace('/', ' ');
-            }
-
-            leftString = leftString.replace('*', ' ').trim();
-            rightString = rightString.replace('*', ' ').trim();
-        }
-        String[] leftTokens = leftString.split(fSeparator);
-        String[] rightTokens = rightString.split(fSeparator);
-
-        Hashtable<String, Integer> tokens = new Hashtable<String, Integer>();
-
-        // fill the Hashtable with the tokens from left
-        for (String token : leftTokens) {
-            if (tokens.containsKey(token)) {
-                Integer nrTokensForString = tokens.remove(token);
-                tokens.put(token, nrTokensForString + 1);
+        // comment delimiters are removed according to the kind of comment on the left
+        int kind = getKind(left);
+        Buffers buffers = BUFFERS.get();
+        buffers.fLeft.split(left, kind, fSeparator);
+        buffers.fRight.split(right, kind, fSeparator);
+        double match = buffers.countCommon();
+        double maximumTokens = Math.max(buffers.fLeft.fCount, buffers.fRight.fCount);
+        return match / maximumTokens;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * The profile of a string holds its distinct tokens with their counts, which depend on the kind of comment the
+     * string is compared with. They are split on first use for each kind.
+     */
+    public Object prepareProfile(String string) {
+        return new Profile(string);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double calculateProfileSimilarity(Object leftProfile, Object rightProfile) {
+        Profile left = (Profile) leftProfile;
+        Profile right = (Profile) rightProfile;
+        int kind = getKind(left.fString);
+        TokenCounts leftTokens = getTokenCounts(left, kind);
+        TokenCounts rightTokens = getTokenCounts(right, kind);
+        return countCommon(leftTokens, rightTokens) / (double) Math.max(leftTokens.fSize, rightTokens.fSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * The token counts of the left profile are merged with those of each right profile in turn.
+     */
+    public void calculateProfileSimilarities(
+            Object leftProfile,
+            Object[] rightProfiles,
+            int count,
+            double threshold,
+            double[] similarities) {
+        Profile left = (Profile) leftProfile;
+        int kind = getKind(left.fString);
+        TokenCounts leftTokens = getTokenCounts(left, kind);
+        for (int i = 0; i < count; i++) {
+            TokenCounts rightTokens = getTokenCounts((Profile) rightProfiles[i], kind);
+            similarities[i] =
+                    countCommon(leftTokens, rightTokens) / (double) Math.max(leftTokens.fSize, rightTokens.fSize);
+        }
+    }
+
+    /**
+     * Returns the number of tokens two multisets have in common, both in hash order.
+     */
+    private static int countCommon(TokenCounts left, TokenCounts right) {
+        int result = 0;
+        int i = 0;
+        int j = 0;
+        while ((i < left.fHashes.length) && (j < right.fHashes.length)) {
+            int c;
+            if (left.fHashes[i] != right.fHashes[j]) {
+                c = left.fHashes[i] < right.fHashes[j] ? -1 : 1;
+            } else {
+                c = left.fTokens[i].compareTo(right.fTokens[j]);
+            }
+            if (c < 0) {
+                i++;
+            } else if (c > 0) {
+                j++;
+            } else {
+                result += Math.min(left.fCounts[i], right.fCounts[j]);
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    private TokenCounts getTokenCounts(Profile profile, int kind) {
+        TokenCounts tokenCounts = profile.fTokenCounts.get(kind);
+        if (tokenCounts == null) {
+            String[] tokens = tokenize(profile.fString, kind);
+            Arrays.sort(tokens, HASH_ORDER);
+            int distinct = 0;
+            for (int i = 0; i < tokens.length; i++) {
+                if ((i == 0) || !tokens[i].equals(tokens[i - 1])) {
+                    distinct++;
+                }
+            }
+            tokenCounts = new TokenCounts(distinct, tokens.length);
+            int index = -1;
+            for (int i = 0; i < tokens.length; i++) {
+                if ((i == 0) || !tokens[i].equals(tokens[i - 1])) {
+                    index++;
+                    tokenCounts.fTokens[index] = tokens[i];
+                    tokenCounts.fHashes[index] = tokens[i].hashCode();
+                }
+                tokenCounts.fCounts[index]++;
+            }
+            profile.fTokenCounts.set(kind, tokenCounts);
+        }
+        return tokenCounts;
+    }
+
+    /**
+     * Splits the given string into the tokens that are compared by this calculator. If the string is a comment, the
+     * comment delimiters are removed first.
+     * 
+     * <p>
+     * Two strings of the same kind of comment have a similarity of <code>1.0</code> if and only if their tokens are
+     * equal regardless of their order.
+     * 
+     * @param string
+     *            to split
+     * @return the tokens of the string
+     */
+    public String[] tokenize(String string) {
+        return tokenize(string, getKind(string));
+    }
+
+    private String[] tokenize(String string, int kind) {
+        Tokens tokens = BUFFERS.get().fLeft;
+        tokens.split(string, kind, fSeparator);
+        String[] result = new String[tokens.fCount];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = tokens.get(i);
+        }
+        return result;
+    }
+
+    private static int getKind(String string) {
+        if (string.startsWith("//")) {
+            return LINE_COMMENT;
+        } else if (string.startsWith("/*")) {
+            return BLOCK_COMMENT;
+        }
+        return NO_COMMENT;
+    }
+
+    /**
+     * Whitespace as of <code>\s</code> in regular expressions.
+     */
+    private static boolean isWhitespace(char c) {
+        return (c == ' ') || (c == '\t') || (c == '\n') || (c == '\u000B') || (c == '\f') || (c == '\r');
+    }
+
+    /**
+     * Tokens of a string, as ranges of the chars that are left after removing the comment delimiters.
+     */
+    private static final class Tokens {
+
+        private char[] fChars = new char[64];
+        private int fLength;
+        // token i spans from fBounds[2 * i] to fBounds[2 * i + 1]
+        private int[] fBounds = new int[32];
+        private int fCount;
+
+        /**
+         * Removes the comment delimiters of the kind from the string and splits the rest into tokens.
+         */
+        void split(String string, int kind, Pattern separator) {
+            if (fChars.length < string.length()) {
+                fChars = new char[Math.max(string.length(), fChars.length * 2)];
+            }
+            if (kind == LINE_COMMENT) {
+                removeLineCommentDelimiters(string);
+            } else if (kind == BLOCK_COMMENT) {
+                removeBlockCommentDelimiters(string);
+            } else {
+                string.getChars(0, string.length(), fChars, 0);
+                fLength = string.length();
+            }
+            fCount = 0;
+            if (separator == null) {
+                splitWhitespace();
             } else {
-                tokens.put(token, 1);
+                splitPattern(separator);
             }
         }
 
-        double match = 0.0;
-        // delete the tokens in right from the Hashtable
-        for (int i = 0; i < rightTokens.length; i++) {
-            String token = rightTokens[i];
-            if (tokens.containsKey(token)) {
-                match++;
-                if (tokens.get(token) > 1) {
-                    Integer nrTokensForString = tokens.remove(token);
-                    tokens.put(token, nrTokensForString - 1);
+        /**
+         * Removes each <code>//</code> with the whitespace after it.
+         */
+        private void removeLineCommentDelimiters(String string) {
+            int length = 0;
+            int i = 0;
+            while (i < string.length()) {
+                if ((string.charAt(i) == '/') && (i + 1 < string.length()) && (string.charAt(i + 1) == '/')) {
+                    i += 2;
+                    while ((i < string.length()) && isWhitespace(string.charAt(i))) {
+                        i++;
+                    }
                 } else {
-                    tokens.remove(token);
+                    fChars[length++] = string.charAt(i++);
                 }
-                rightTokens[i] = "";
             }
+            fLength = length;
         }
 
-        double maximumTokens = Math.max(leftTokens.length, rightTokens.length);
-        return match / maximumTokens;
+        /**
+         * Removes each <code>/</code> followed by <code>*</code>s with the whitespace after them and drops everything
+         * from the first <code>*&#47;</code> that is left. The remaining <code>*</code>s become blanks and the result
+         * is trimmed.
+         */
+        private void removeBlockCommentDelimiters(String string) {
+            int length = 0;
+            boolean afterStar = false;
+            int i = 0;
+            while (i < string.length()) {
+                char c = string.charAt(i);
+                if ((c == '/') && (i + 1 < string.length()) && (string.charAt(i + 1) == '*')) {
+                    i++;
+                    while ((i < string.length()) && (string.charAt(i) == '*')) {
+                        i++;
+                    }
+                    while ((i < string.length()) && isWhitespace(string.charAt(i))) {
+                        i++;
+                    }
+                } else if ((c == '/') && afterStar) {
+                    // the star before is part of the end of the comment
+                    length--;
+                    break;
+                } else {
+                    afterStar = c == '*';
+                    fChars[length++] = afterStar ? ' ' : c;
+                    i++;
+                }
+            }
+            int start = 0;
+            while ((start < length) && (fChars[start] <= ' ')) {
+                start++;
+            }
+            while ((length > start) && (fChars[length - 1] <= ' ')) {
+                length--;
+            }
+            System.arraycopy(fChars, start, fChars, 0, length - start);
+            fLength = length - start;
+        }
+
+        /**
+         * Splits like <code>String.split("\\s+")</code>: a leading empty token is kept, trailing empty tokens are
+         * dropped, and a string without whitespace is a single token.
+         */
+        private void splitWhitespace() {
+            int start = 0;
+            int i = 0;
+            while (i < fLength) {
+                if (isWhitespace(fChars[i])) {
+                    add(start, i);
+                    while ((i < fLength) && isWhitespace(fChars[i])) {
+                        i++;
+                    }
+                    start = i;
+                } else {
+                    i++;
+                }
+            }
+            if (fCount == 0) {
+                add(0, fLength);
+                return;
+            }
+            add(start, fLength);
+            while ((fCount > 0) && (fBounds[2 * fCount - 2] == fBounds[2 * fCount - 1])) {
+                fCount--;
+            }
+        }
+
+        private void splitPattern(Pattern separator) {
+            String[] tokens = separator.split(new String(fChars, 0, fLength));
+            int length = 0;
+            for (String token : tokens) {
+                length += token.length();
+            }
+            if (fChars.length < length) {
+                fChars = new char[length];
+            }
+            fLength = 0;
+            for (String token : tokens) {
+                token.getChars(0, token.length(), fChars, fLength);
+                add(fLength, fLength + token.length());
+                fLength += token.length();
+            }
+        }
+
+        private void add(int start, int end) {
+            if (fBounds.length < 2 * fCount + 2) {
+                fBounds = Arrays.copyOf(fBounds, fBounds.length * 2);
+            }
+            fBounds[2 * fCount] = start;
+            fBounds[2 * fCount + 1] = end;
+            fCount++;
+        }
+
+        /**
+         * Returns the hash of the token, which is the hash of its string.
+         */
+        int hash(int token) {
+            int hash = 0;
+            for (int i = fBounds[2 * token]; i < fBounds[2 * token + 1]; i++) {
+                hash = 31 * hash + fChars[i];
+            }
+            return hash;
+        }
+
+        boolean equals(int token, Tokens other, int otherToken) {
+            int start = fBounds[2 * token];
+            int length = fBounds[2 * token + 1] - start;
+            int otherStart = other.fBounds[2 * otherToken];
+            if (other.fBounds[2 * otherToken + 1] - otherStart != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (fChars[start + i] != other.fChars[otherStart + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        String get(int token) {
+            return new String(fChars, fBounds[2 * token], fBounds[2 * token + 1] - fBounds[2 * token]);
+        }
     }
 
+    /**
+     * Buffers of a thread: the tokens of the left and the right string, and the table in which the tokens of the left
+     * string are counted.
+     */
+    private static final class Buffers {
+
+        private Tokens fLeft = new Tokens();
+        private Tokens fRight = new Tokens();
+        // first token of the left string plus one with the hash, zero marks a free slot
+        private int[] fSlots = new int[64];
+        private int[] fHashes = new int[64];
+        private int[] fCounts = new int[64];
+
+        /**
+         * Returns the number of tokens the left and the right string have in common, counting each token as often as
+         * it is in both of them.
+         */
+        int countCommon() {
+            int capacity = Integer.highestOneBit(Math.max(32, fLeft.fCount) * 2);
+            if (fSlots.length < capacity) {
+                fSlots = new int[capacity];
+                fHashes = new int[capacity];
+                fCounts = new int[capacity];
+            } else {
+                Arrays.fill(fSlots, 0, capacity, 0);
+            }
+            int mask = capacity - 1;
+            for (int token = 0; token < fLeft.fCount; token++) {
+                int hash = fLeft.hash(token);
+                int slot = find(fLeft, token, hash, mask);
+                if (fSlots[slot] == 0) {
+                    fSlots[slot] = token + 1;
+                    fHashes[slot] = hash;
+                    fCounts[slot] = 0;
+                }
+                fCounts[slot]++;
+            }
+            int result = 0;
+            for (int token = 0; token < fRight.fCount; token++) {
+                int slot = find(fRight, token, fRight.hash(token), mask);
+                if ((fSlots[slot] != 0) && (fCounts[slot] > 0)) {
+                    fCounts[slot]--;
+                    result++;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns the slot of the token among the tokens of the left string, or the free slot it belongs in.
+         */
+        private int find(Tokens tokens, int token, int hash, int mask) {
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while ((fSlots[slot] != 0)
+                    && ((fHashes[slot] != hash) || !fLeft.equals(fSlots[slot] - 1, tokens, token))) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+
+    /**
+     * Distinct tokens of a string in hash order with their counts.
+     */
+    private static final class TokenCounts {
+
+        private String[] fTokens;
+        private int[] fHashes;
+        private int[] fCounts;
+        private int fSize;
+
+        TokenCounts(int distinct, int size) {
+            fTokens = new String[distinct];
+            fHashes = new int[distinct];
+            fCounts = new int[distinct];
+            fSize = size;
+        }
+    }
+
+    /**
+     * Profile of a string, with its token counts for each kind of comment.
+     */
+    private static final class Profile {
+
+        private String fString;
+        private AtomicReferenceArray<TokenCounts> fTokenCounts = new AtomicReferenceArray<TokenCounts>(3);
+
+        Profile(String string) {
+            fString = string;
+        }
+    }
 }
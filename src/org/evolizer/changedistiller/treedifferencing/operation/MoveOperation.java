@@ -48,9 +48,28 @@ public class MoveOperation implements ITreeEditOperation {
      *            the position of the node to move
      */
     public MoveOperation(Node nodeToMove, Node newNode, Node parent, int position) {
+        this(nodeToMove, newNode, (Node) nodeToMove.getParent(), parent, position);
+    }
+
+    /**
+     * Creates a new move operation for a node whose current parent is not its parent in the {@link Node} tree, e.g.,
+     * because the tree edits are not applied to the tree.
+     * 
+     * @param nodeToMove
+     *            the node to move
+     * @param newNode
+     *            the node the moved node becomes
+     * @param oldParent
+     *            the parent node of the node to move before the move
+     * @param parent
+     *            the parent node in which the node becomes a child after move
+     * @param position
+     *            the position of the node to move
+     */
+    public MoveOperation(Node nodeToMove, Node newNode, Node oldParent, Node parent, int position) {
         fNodeToMove = nodeToMove;
         fNewNode = newNode;
-        fOldParent = (Node) nodeToMove.getParent();
+        fOldParent = oldParent;
         fNewParent = parent;
         fPosition = position;
     }